@@ -0,0 +1,139 @@
+package net.globulus.mmap;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the values of the constant fields of a class straight from its class file, without
+ * loading the class. Only the constant pool and the fields are parsed, the rest of the class file
+ * is never read.
+ */
+final class ClassFileConstants {
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+	private static final String CONSTANT_VALUE_ATTRIBUTE = "ConstantValue";
+
+	private ClassFileConstants() { }
+
+	/**
+	 * @return Values of the fields that have a ConstantValue attribute, by field name. Strings are
+	 * returned as they are, booleans as {@link Boolean}s, and other primitives boxed.
+	 */
+	static Map<String, Object> read(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.readInt() != MAGIC) {
+			throw new IOException("Not a class file");
+		}
+		dis.readUnsignedShort(); // Minor version
+		dis.readUnsignedShort(); // Major version
+
+		int constantCount = dis.readUnsignedShort();
+		Object[] constants = new Object[constantCount];
+		int[] stringIndices = new int[constantCount];
+		for (int i = 1; i < constantCount; i++) {
+			int tag = dis.readUnsignedByte();
+			switch (tag) {
+				case CONSTANT_UTF8:
+					constants[i] = dis.readUTF(); // Class files use the same modified UTF-8
+					break;
+				case CONSTANT_INTEGER:
+					constants[i] = dis.readInt();
+					break;
+				case CONSTANT_FLOAT:
+					constants[i] = dis.readFloat();
+					break;
+				case CONSTANT_LONG:
+					constants[i++] = dis.readLong(); // Takes up two entries
+					break;
+				case CONSTANT_DOUBLE:
+					constants[i++] = dis.readDouble(); // Takes up two entries
+					break;
+				case CONSTANT_STRING:
+					stringIndices[i] = dis.readUnsignedShort();
+					break;
+				case CONSTANT_CLASS:
+				case CONSTANT_METHOD_TYPE:
+				case CONSTANT_MODULE:
+				case CONSTANT_PACKAGE:
+					dis.readUnsignedShort();
+					break;
+				case CONSTANT_METHOD_HANDLE:
+					dis.readUnsignedByte();
+					dis.readUnsignedShort();
+					break;
+				case CONSTANT_FIELDREF:
+				case CONSTANT_METHODREF:
+				case CONSTANT_INTERFACE_METHODREF:
+				case CONSTANT_NAME_AND_TYPE:
+				case CONSTANT_DYNAMIC:
+				case CONSTANT_INVOKE_DYNAMIC:
+					dis.readInt();
+					break;
+				default:
+					throw new IOException("Unsupported constant pool tag " + tag);
+			}
+		}
+
+		dis.readUnsignedShort(); // Access flags
+		dis.readUnsignedShort(); // This class
+		dis.readUnsignedShort(); // Super class
+		int interfaceCount = dis.readUnsignedShort();
+		skipFully(dis, interfaceCount * 2);
+
+		Map<String, Object> values = new HashMap<>();
+		int fieldCount = dis.readUnsignedShort();
+		for (int i = 0; i < fieldCount; i++) {
+			dis.readUnsignedShort(); // Access flags
+			String name = (String) constants[dis.readUnsignedShort()];
+			String descriptor = (String) constants[dis.readUnsignedShort()];
+			int attributeCount = dis.readUnsignedShort();
+			for (int j = 0; j < attributeCount; j++) {
+				String attributeName = (String) constants[dis.readUnsignedShort()];
+				int length = dis.readInt();
+				if (!CONSTANT_VALUE_ATTRIBUTE.equals(attributeName)) {
+					skipFully(dis, length);
+					continue;
+				}
+				int index = dis.readUnsignedShort();
+				Object value = (stringIndices[index] != 0) ? constants[stringIndices[index]] : constants[index];
+				if ("Z".equals(descriptor)) {
+					value = ((Integer) value) != 0;
+				}
+				values.put(name, value);
+			}
+		}
+		return values;
+	}
+
+	private static void skipFully(DataInputStream dis, int count) throws IOException {
+		while (count > 0) {
+			int skipped = dis.skipBytes(count);
+			if (skipped <= 0) {
+				throw new IOException("Unexpected end of class file");
+			}
+			count -= skipped;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package net.globulus.mmap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.lang.model.element.Element;
+
+/**
+ * The default {@link MergeStore}, which writes payloads to merge classes via
+ * {@link javax.annotation.processing.Filer}. Each payload is split into chunk classes, which are
+ * listed by a head class. Merge classes are never loaded, their constants are read straight from
+ * their class files instead, see {@link ClassFileConstants}. This keeps them out of the
+ * processor's class loader, which can live as long as the Gradle daemon.
+ */
+final class ClassMergeStore implements MergeStore {
+
+	static final String CLASS_EXTENSION = ".class";
+
+	private static final int MAX_HEAD_GENERATION = 256;
+
+	private final MergeManager<?> manager;
+
+	ClassMergeStore(MergeManager<?> manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Lists head classes in {@link MergeManager#packageName}, via the {@link MergeIndex} shared by
+	 * the compilation. If the package can't be listed, only the head class with the highest
+	 * generation is found, by probing their names.
+	 */
+	@Override
+	public List<String> listMerges(String processorName) {
+		MergeIndex.Listing listing = getListing(processorName);
+		List<String> ids = new ArrayList<>();
+		if (listing.listed) {
+			ids.addAll(listing.headIds);
+		} else {
+			String headId = probeHeadId(processorName);
+			if (headId != null) {
+				ids.add(headId);
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public InputStream read(String processorName, String mergeId) {
+		String headClassName = getHeadClassName(processorName, mergeId);
+		if (!classExists(headClassName)) {
+			return null;
+		}
+		return readMergeClasses(headClassName, processorName);
+	}
+
+	@Override
+	public void write(String processorName, String mergeId, int generation, byte[] payload,
+					  Element... originatingElements) {
+		new MergeFileCodeGen(manager.packageName, processorName, manager.processorLog)
+				.generate(manager.filer, mergeId, generation, payload, originatingElements);
+	}
+
+	/**
+	 * Reads the payload of merge classes written by older versions of MMAP, which don't have heads.
+	 * @return Stream of the payload, or null if no merge classes were found.
+	 */
+	InputStream readLegacy(String processorName) {
+		return readMergeClasses(null, processorName);
+	}
+
+	/**
+	 * Reads the payload from merge classes, either those listed by the provided head class, or
+	 * those found by a legacy scan if there's no head. Chunks are read one at a time, as the
+	 * returned stream gets to them.
+	 * @return Stream of the payload, or null if no merge classes were found.
+	 */
+	private InputStream readMergeClasses(String headClassName, String processorName) {
+		List<String> mergeClasses = new ArrayList<>();
+		if (headClassName != null) {
+			if (!readHead(headClassName, mergeClasses)) {
+				return null;
+			}
+		} else if (getListing(processorName).listed) {
+			findListedLegacyMergeClasses(mergeClasses, processorName);
+		} else {
+			findLegacyMergeClasses(mergeClasses, processorName);
+		}
+		if (mergeClasses.isEmpty()) {
+			return null;
+		}
+		return new SequenceInputStream(new ChunkEnumeration(mergeClasses));
+	}
+
+	/**
+	 * Probes head classes by generation. Heads are indexed by generation, so this takes as many
+	 * lookups as there are modules above, regardless of when they were built.
+	 * @return Merge id of the head class with the highest generation, or null if there are none.
+	 */
+	private String probeHeadId(String processorName) {
+		manager.processorLog.warn(null, "Finding merge head");
+		String headId = null;
+		for (int generation = 0; generation < MAX_HEAD_GENERATION; generation++) {
+			String mergeId = MergeFileCodeGen.getMergeId(null, generation);
+			if (classExists(getHeadClassName(processorName, mergeId))) {
+				headId = mergeId;
+			} else if (headId != null) {
+				break; // We've passed the last written head
+			}
+		}
+		return headId;
+	}
+
+	/**
+	 * Reads the names of the chunk classes listed in the provided head class, adding them to
+	 * mergeClasses in reverse order, the same way {@link #findLegacyMergeClasses(List, String)} does.
+	 * @return true if the head was read successfully.
+	 */
+	private boolean readHead(String headClassName, List<String> mergeClasses) {
+		try {
+			Map<String, Object> constants = readConstants(headClassName);
+			String chunks = (String) constants.get(MergeFileCodeGen.CHUNKS_FIELD_NAME);
+			Integer chunkCount = (Integer) constants.get(MergeFileCodeGen.CHUNK_COUNT_FIELD_NAME);
+			if (chunks == null || chunkCount == null) {
+				manager.processorLog.error(null, "Invalid merge head " + headClassName);
+				return false;
+			}
+			String[] chunkNames = chunks.split(MergeFileCodeGen.CHUNK_SEPARATOR);
+			if (chunkNames.length != chunkCount) {
+				manager.processorLog.error(null, "Merge head lists " + chunkNames.length
+						+ " chunks, expected " + chunkCount);
+				return false;
+			}
+			for (int i = chunkNames.length - 1; i >= 0; i--) {
+				mergeClasses.add(manager.packageName + "." + chunkNames[i]);
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Scans back from {@link MergeManager#timestamp} to find merge classes written by modules
+	 * that don't write heads.
+	 */
+	private void findLegacyMergeClasses(List<String> mergeClasses, String processorName) {
+		// Find first merge file
+		manager.processorLog.warn(null, "Finding first merge file");
+		for (int i = 0; i < manager.lookbackPeriod; i++) {
+			long index = manager.timestamp - i;
+			String lastMergeClass = getClassNameForIndex(processorName, index);
+			if (!classExists(lastMergeClass)) {
+				continue;
+			}
+			manager.processorLog.warn(null, "Found merge class at " + index);
+			mergeClasses.add(lastMergeClass);
+
+			// We've found the last written merge file
+			for (long j = index - 1; j > manager.timestamp - manager.lookbackPeriod; j--) {
+				String mergeClass = getClassNameForIndex(processorName, j);
+				if (!classExists(mergeClass)) {
+					break; // Break as we don't have classes beyond this point
+				}
+				mergeClasses.add(mergeClass);
+			}
+
+			manager.processorLog.warn(null, "Found a total of "
+					+ mergeClasses.size() + " merge classes in this run.");
+			break; // break if something was found
+		}
+	}
+
+	/**
+	 * Uses the listing of {@link MergeManager#packageName} to find merge classes written by modules
+	 * that don't write heads. Unlike {@link #findLegacyMergeClasses(List, String)}, this isn't bound
+	 * by {@link MergeManager#lookbackPeriod}.
+	 */
+	private void findListedLegacyMergeClasses(List<String> mergeClasses, String processorName) {
+		Long previous = null;
+		for (long index : getListing(processorName).legacyIndices) {
+			if (previous != null && index != previous - 1) {
+				break; // Indices of a single merge are consecutive
+			}
+			mergeClasses.add(getClassNameForIndex(processorName, index));
+			previous = index;
+		}
+		manager.processorLog.warn(null, "Found a total of "
+				+ mergeClasses.size() + " merge classes in this run.");
+	}
+
+	private MergeIndex.Listing getListing(String processorName) {
+		return MergeIndex.forCompilation(manager).getListing(manager.packageName, processorName, manager.processorLog);
+	}
+
+	private String getClassNameForIndex(String processorName, long index) {
+		return manager.packageName + "." + MergeFileCodeGen.getClassName(processorName, index);
+	}
+
+	private String getHeadClassName(String processorName, String mergeId) {
+		return manager.packageName + "." + MergeFileCodeGen.getHeadClassName(processorName, mergeId);
+	}
+
+	private static boolean classExists(String className) {
+		return MergeStore.class.getClassLoader().getResource(getClassFilePath(className)) != null;
+	}
+
+	/**
+	 * @return Constants of the provided class, read from its class file.
+	 */
+	private static Map<String, Object> readConstants(String className) throws IOException {
+		InputStream is = MergeStore.class.getClassLoader().getResourceAsStream(getClassFilePath(className));
+		if (is == null) {
+			throw new IOException("Unable to find class file of " + className);
+		}
+		try (InputStream in = new BufferedInputStream(is)) {
+			return ClassFileConstants.read(in);
+		}
+	}
+
+	private static String getClassFilePath(String className) {
+		return className.replace('.', '/') + CLASS_EXTENSION;
+	}
+
+	/**
+	 * Enumerates chunks of merge classes, oldest first, reading each chunk only when it's needed.
+	 * Stops after the chunk that says there's no next one.
+	 */
+	private static final class ChunkEnumeration implements Enumeration<InputStream> {
+
+		private final List<String> mergeClasses;
+		private int index;
+		private boolean hasNext = true;
+
+		/**
+		 * @param mergeClasses Merge classes, newest first.
+		 */
+		ChunkEnumeration(List<String> mergeClasses) {
+			this.mergeClasses = mergeClasses;
+			index = mergeClasses.size() - 1;
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return hasNext && index >= 0;
+		}
+
+		@Override
+		public InputStream nextElement() {
+			if (!hasMoreElements()) {
+				throw new NoSuchElementException();
+			}
+			String mergeClass = mergeClasses.get(index--);
+			try {
+				Map<String, Object> constants = readConstants(mergeClass);
+				Object merge = constants.get(MergeFileCodeGen.MERGE_FIELD_NAME);
+				if (merge instanceof String) {
+					hasNext = (Boolean) constants.get(MergeFileCodeGen.NEXT_FIELD_NAME);
+					return new ByteArrayInputStream(Base64.getDecoder().decode((String) merge));
+				}
+				// Merge classes written by older versions of MMAP hold raw bytes, which aren't constants
+				return readLoadedChunk(Class.forName(mergeClass));
+			} catch (IOException | ClassNotFoundException e) {
+				e.printStackTrace();
+				hasNext = false;
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		}
+
+		private InputStream readLoadedChunk(Class<?> mergeClass) {
+			try {
+				hasNext = mergeClass.getField(MergeFileCodeGen.NEXT_FIELD_NAME).getBoolean(null);
+				return new ByteArrayInputStream((byte[]) mergeClass.getField(MergeFileCodeGen.MERGE_FIELD_NAME).get(null));
+			} catch (IllegalAccessException | NoSuchFieldException e) {
+				e.printStackTrace();
+				hasNext = false;
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		}
+	}
+}
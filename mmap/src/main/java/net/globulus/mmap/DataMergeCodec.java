@@ -0,0 +1,77 @@
+package net.globulus.mmap;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link MergeCodec} for {@link DataMergeInput}s, which write themselves to a
+ * {@link java.io.DataOutput}, and are read back by the provided {@link Reader}. E.g:
+ * <pre>
+ * mergeManager.setCodec(new DataMergeCodec&lt;&gt;(MyInput::readData));
+ * </pre>
+ * @param <T> The {@link DataMergeInput} class for your processor.
+ */
+public final class DataMergeCodec<T extends DataMergeInput<T>> implements MergeCodec<T> {
+
+    private final Reader<T> reader;
+
+    public DataMergeCodec(Reader<T> reader) {
+        assert reader != null : "Reader must be set!";
+        this.reader = reader;
+    }
+
+    @Override
+    public void encode(T input, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        input.writeData(dos);
+        dos.flush();
+    }
+
+    @Override
+    public T decode(InputStream in) throws IOException {
+        return reader.read(new DataInputStream(in));
+    }
+
+    /**
+     * Writes a string that may be null, and, unlike {@link java.io.DataOutput#writeUTF(String)},
+     * may be of any length.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the data written by {@link DataMergeInput#writeData(java.io.DataOutput)}, in the same
+     * order, and creates a new input from it.
+     * @param <T> The {@link DataMergeInput} class for your processor.
+     */
+    @FunctionalInterface
+    public interface Reader<T> {
+        T read(DataInput in) throws IOException;
+    }
+}
@@ -0,0 +1,61 @@
+package net.globulus.mmap;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.lang.model.element.Element;
+
+/**
+ * Wraps the {@link ProcessorLog} set on a {@link MergeManager}, so that it's only ever called from
+ * the processing thread, i.e the one the wrapper was created on. Messages logged by background
+ * work, see {@link MergeManager#executor}, are queued, and passed on in order the next time the
+ * processing thread logs a message or calls {@link #flush()}.
+ */
+final class DeferredProcessorLog implements ProcessorLog {
+
+	private final ProcessorLog log;
+	private final Thread processingThread;
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+	DeferredProcessorLog(ProcessorLog log) {
+		this.log = log;
+		this.processingThread = Thread.currentThread();
+	}
+
+	@Override
+	public void note(Element element, String message, Object... args) {
+		log(() -> log.note(element, message, args));
+	}
+
+	@Override
+	public void warn(Element element, String message, Object... args) {
+		log(() -> log.warn(element, message, args));
+	}
+
+	@Override
+	public void error(Element element, String message, Object... args) {
+		log(() -> log.error(element, message, args));
+	}
+
+	private void log(Runnable message) {
+		if (Thread.currentThread() != processingThread) {
+			pending.add(message);
+			return;
+		}
+		flush();
+		message.run();
+	}
+
+	/**
+	 * Passes on the queued messages, if called from the processing thread.
+	 */
+	void flush() {
+		if (Thread.currentThread() != processingThread) {
+			return;
+		}
+		Runnable message;
+		while ((message = pending.poll()) != null) {
+			message.run();
+		}
+	}
+}
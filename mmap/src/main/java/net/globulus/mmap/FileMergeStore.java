@@ -0,0 +1,107 @@
+package net.globulus.mmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+
+/**
+ * A {@link MergeStore} that keeps payloads in files in a directory shared by all the modules of a
+ * project, e.g one in the root project's build directory, so they don't add any classes or
+ * resources to the modules. Large payloads are read through a {@link MappedByteBuffer}, so they're
+ * never copied to the heap as a whole. A mapping can't be released explicitly, so it lives until
+ * its buffer is garbage collected, and some platforms, e.g Windows, don't allow replacing or
+ * deleting a mapped file until then. Small payloads, which most are, are read into the heap
+ * instead, so that they don't hold on to their files, and a module never reads its own payloads.
+ * <p>Every module sees all the payloads in the directory, regardless of which modules it depends
+ * on, so this store only suits projects whose modules form a single chain. That includes its own
+ * previous payload and the payloads of the modules downstream of it, so each module has to set
+ * {@link MergeManager#setModuleId(String)}, which this store requires: a rebuilt module then skips
+ * the payloads written by itself and the ones whose ancestry contains it, and replaces its own
+ * previous payload. Files written here aren't tracked by the build system either, so clean the
+ * directory along with the rest of the build.</p>
+ */
+public final class FileMergeStore implements MergeStore {
+
+    /**
+     * Payloads smaller than this are read into the heap, as mapping them costs more than it saves.
+     */
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    private final File dir;
+
+    public FileMergeStore(File dir) {
+        assert dir != null : "Dir must be set!";
+        this.dir = dir;
+    }
+
+    @Override
+    public List<String> listMerges(String processorName) {
+        List<String> ids = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) {
+            return ids;
+        }
+        String prefix = MergeFileCodeGen.getResourceName(processorName, "");
+        prefix = prefix.substring(0, prefix.length() - MergeFileCodeGen.RESOURCE_EXTENSION.length());
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(MergeFileCodeGen.RESOURCE_EXTENSION)) {
+                ids.add(name.substring(prefix.length(), name.length() - MergeFileCodeGen.RESOURCE_EXTENSION.length()));
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public InputStream read(String processorName, String mergeId) throws IOException {
+        File file = getFile(processorName, mergeId);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (file.length() < MAP_THRESHOLD) {
+            return new ByteArrayInputStream(Files.readAllBytes(file.toPath()));
+        }
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ByteBufferInputStream(buffer);
+        }
+    }
+
+    @Override
+    public void write(String processorName, String mergeId, int generation, byte[] payload,
+                      Element... originatingElements) throws IOException {
+        String moduleId = MergeFileCodeGen.getModuleId(mergeId);
+        if (moduleId == null) {
+            throw new IOException("FileMergeStore requires a module id, see MergeManager#setModuleId");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create merge dir " + dir);
+        }
+        File file = getFile(processorName, mergeId);
+        // Write to a temp file first, so that concurrent readers never see a partial payload
+        File temp = new File(dir, file.getName() + ".tmp");
+        Files.write(temp.toPath(), payload);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // Payloads of earlier builds of the module, of a different generation, are stale now
+        for (String id : listMerges(processorName)) {
+            if (moduleId.equals(MergeFileCodeGen.getModuleId(id))
+                    && MergeFileCodeGen.getGeneration(id) != generation) {
+                Files.deleteIfExists(getFile(processorName, id).toPath());
+            }
+        }
+    }
+
+    private File getFile(String processorName, String mergeId) {
+        return new File(dir, MergeFileCodeGen.getResourceName(processorName, mergeId));
+    }
+}
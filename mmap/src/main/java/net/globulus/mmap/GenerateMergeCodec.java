@@ -0,0 +1,20 @@
+package net.globulus.mmap;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Have {@link MergeCodecProcessor} generate a {@link MergeCodec} for the annotated
+ * {@link MergeInput}, which reads and writes its fields directly, without any reflection. The
+ * generated codec is used by {@link MergeManager} automatically, unless another one is set.
+ * <p>The annotated class must have a non-private constructor that takes all of its non-static,
+ * non-transient fields in the order in which they're declared, and those fields mustn't be
+ * private. Supported field types are primitives and their boxes, strings, enums, arrays of those,
+ * collections and maps, and other classes annotated with this annotation.</p>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateMergeCodec {
+}
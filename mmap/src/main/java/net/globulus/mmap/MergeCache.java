@@ -0,0 +1,121 @@
+package net.globulus.mmap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers the last merge of a processor on disk, so that it can be reused when neither the
+ * upstream payload nor the local input have changed since, which is the case with most modules
+ * in incremental builds. A cached merge is only reused with the same codec and compression level
+ * it was written with.
+ */
+final class MergeCache {
+
+	private static final int VERSION = 2;
+	private static final String FILE_NAME_FORMAT = "%s.mmapcache";
+
+	private final File file;
+	private final ProcessorLog processorLog;
+
+	MergeCache(File dir, String processorName, ProcessorLog processorLog) {
+		this.file = new File(dir, String.format(FILE_NAME_FORMAT, processorName));
+		this.processorLog = processorLog;
+	}
+
+	/**
+	 * @return The merged payload cached for the provided hashes, or null if there's none.
+	 */
+	byte[] get(byte[] upstreamHash, byte[] localHash, int compressionLevel, String codec) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (!readKey(in, upstreamHash, compressionLevel, codec) || !Arrays.equals(localHash, readHash(in))) {
+				return null;
+			}
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			processorLog.warn(null, "Found cached merge in " + file);
+			return payload;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the cached merge is of the provided upstream payloads, whichever local input
+	 * it was merged with.
+	 */
+	boolean containsUpstream(byte[] upstreamHash, int compressionLevel, String codec) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return readKey(in, upstreamHash, compressionLevel, codec);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the cache key up to the local hash.
+	 * @return true if it matches the provided one.
+	 */
+	private static boolean readKey(DataInputStream in, byte[] upstreamHash, int compressionLevel, String codec)
+			throws IOException {
+		return in.readInt() == VERSION
+				&& in.readInt() == compressionLevel
+				&& codec.equals(in.readUTF())
+				&& Arrays.equals(upstreamHash, readHash(in));
+	}
+
+	/**
+	 * Replaces the cached merge with the provided one.
+	 * @param compressionLevel Compression level of the provided payload, which has to match for the
+	 *                         payload to be reused.
+	 * @param codec Id of the codec that encoded the provided payload, see
+	 *              {@link MergePayload#getCodecId(MergeCodec)}.
+	 */
+	void put(byte[] upstreamHash, byte[] localHash, int compressionLevel, String codec, byte[] payload) {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			processorLog.warn(null, "Unable to create merge cache dir " + dir);
+			return;
+		}
+		// Write to a temp file first, so that concurrent readers never see a partial cache
+		File temp = new File(dir, file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+			out.writeInt(VERSION);
+			out.writeInt(compressionLevel);
+			out.writeUTF(codec);
+			writeHash(out, upstreamHash);
+			writeHash(out, localHash);
+			out.writeInt(payload.length);
+			out.write(payload);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			processorLog.warn(null, "Unable to write merge cache " + file);
+		}
+	}
+
+	private static byte[] readHash(DataInputStream in) throws IOException {
+		byte[] hash = new byte[in.readUnsignedByte()];
+		in.readFully(hash);
+		return hash;
+	}
+
+	private static void writeHash(DataOutputStream out, byte[] hash) throws IOException {
+		out.writeByte(hash.length);
+		out.write(hash);
+	}
+}
@@ -0,0 +1,28 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Defines how {@link MergeInput}s are turned into bytes stored in merge files, and back. Set a
+ * codec on your {@link MergeManager} via {@link MergeManager#setCodec(MergeCodec)}. Java
+ * serialization is used by default.
+ * <p>Upstream merge files are decoded with the codec set on the current module's merge manager,
+ * so all the modules processed by the same processor must use the same codec. Merge files record
+ * the class name of the codec that wrote them, and fail to decode with any other.</p>
+ * @param <T> The {@link MergeInput} class for your processor.
+ */
+public interface MergeCodec<T> {
+
+    /**
+     * Writes the input to the provided stream. The stream mustn't be closed.
+     */
+    void encode(T input, OutputStream out) throws IOException;
+
+    /**
+     * Reads an input written by {@link #encode(Object, OutputStream)} from the provided stream.
+     * The stream mustn't be closed.
+     */
+    T decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,511 @@
+package net.globulus.mmap;
+
+import net.globulus.mmap.util.MmapJavaWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates {@link MergeCodec}s for classes annotated with {@link GenerateMergeCodec}. A generated
+ * codec writes and reads the fields of its input directly to and from a {@link java.io.DataOutput},
+ * the same way a {@link DataMergeInput} would.
+ */
+final class MergeCodecCodeGen {
+
+	private static final String CODEC_SUFFIX = "MergeCodec";
+	private static final Set<Modifier> PUBLIC_STATIC = EnumSet.of(Modifier.PUBLIC, Modifier.STATIC);
+	private static final String DATA_OUTPUT = "java.io.DataOutput";
+	private static final String DATA_INPUT = "java.io.DataInput";
+	private static final List<String> THROWS_IO = Collections.singletonList("java.io.IOException");
+
+	/**
+	 * Implementations used for fields whose type is an abstract collection or map.
+	 */
+	private static final Map<String, String> IMPLEMENTATIONS = new LinkedHashMap<>();
+	static {
+		IMPLEMENTATIONS.put("java.util.SortedSet", "java.util.TreeSet");
+		IMPLEMENTATIONS.put("java.util.NavigableSet", "java.util.TreeSet");
+		IMPLEMENTATIONS.put("java.util.Set", "java.util.LinkedHashSet");
+		IMPLEMENTATIONS.put("java.util.Deque", "java.util.ArrayDeque");
+		IMPLEMENTATIONS.put("java.util.Queue", "java.util.ArrayDeque");
+		IMPLEMENTATIONS.put("java.util.List", "java.util.ArrayList");
+		IMPLEMENTATIONS.put("java.util.Collection", "java.util.ArrayList");
+		IMPLEMENTATIONS.put("java.util.SortedMap", "java.util.TreeMap");
+		IMPLEMENTATIONS.put("java.util.NavigableMap", "java.util.TreeMap");
+		IMPLEMENTATIONS.put("java.util.Map", "java.util.LinkedHashMap");
+	}
+
+	private final Filer filer;
+	private final Elements elements;
+	private final Types types;
+	private final TypeMirror collectionType;
+	private final TypeMirror mapType;
+	private final TypeMirror stringType;
+
+	private int localCount;
+
+	MergeCodecCodeGen(Filer filer, Elements elements, Types types) {
+		this.filer = filer;
+		this.elements = elements;
+		this.types = types;
+		collectionType = types.erasure(elements.getTypeElement("java.util.Collection").asType());
+		mapType = types.erasure(elements.getTypeElement("java.util.Map").asType());
+		stringType = elements.getTypeElement("java.lang.String").asType();
+	}
+
+	/**
+	 * Generated codecs are named after the flattened name of their input class, e.g the codec of
+	 * {@code Outer.Input} is {@code Outer_InputMergeCodec}, in the same package.
+	 * @param flatName Name of the input class, without the package, with nested names joined by '_'.
+	 */
+	static String getCodecClassName(String flatName) {
+		return flatName + CODEC_SUFFIX;
+	}
+
+	/**
+	 * The runtime counterpart of {@link #getCodecClassName(String)}.
+	 * @return Fully qualified name of the codec generated for the provided class.
+	 */
+	static String getCodecClassName(Class<?> inputClass) {
+		String name = inputClass.getName();
+		int lastDot = name.lastIndexOf('.');
+		String packagePrefix = name.substring(0, lastDot + 1);
+		return packagePrefix + getCodecClassName(name.substring(lastDot + 1).replace('$', '_'));
+	}
+
+	void generate(TypeElement type) throws IOException, CodecException {
+		PackageElement packageElement = elements.getPackageOf(type);
+		String packageName = packageElement.getQualifiedName().toString();
+		String codecName = getCodecClassName(getFlatName(type));
+		String inputName = types.erasure(type.asType()).toString();
+
+		List<VariableElement> fields = getFields(type);
+		checkConstructor(type, fields);
+		localCount = 0;
+
+		// Unsupported types are only found while writing, so write to memory first
+		StringWriter writer = new StringWriter();
+		try (MmapJavaWriter jw = new MmapJavaWriter(writer)) {
+			jw.emitPackage(packageName);
+			jw.emitEmptyLine();
+
+			jw.emitJavadoc("Generated class by @%s. Do not modify this code!",
+					GenerateMergeCodec.class.getSimpleName());
+			jw.beginType(codecName, "class", EnumSet.of(Modifier.PUBLIC, Modifier.FINAL), null,
+					MergeCodec.class.getName() + "<" + inputName + ">");
+			jw.emitEmptyLine();
+
+			jw.emitAnnotation(Override.class);
+			jw.beginMethod("void", "encode", EnumSet.of(Modifier.PUBLIC),
+					Arrays.asList(inputName, "input", "java.io.OutputStream", "out"), THROWS_IO);
+			jw.emitStatement("java.io.DataOutputStream dos = new java.io.DataOutputStream(out)");
+			jw.emitStatement("write(input, dos)");
+			jw.emitStatement("dos.flush()");
+			jw.endMethod();
+			jw.emitEmptyLine();
+
+			jw.emitAnnotation(Override.class);
+			jw.beginMethod(inputName, "decode", EnumSet.of(Modifier.PUBLIC),
+					Arrays.asList("java.io.InputStream", "in"), THROWS_IO);
+			jw.emitStatement("return read(new java.io.DataInputStream(in))");
+			jw.endMethod();
+			jw.emitEmptyLine();
+
+			jw.beginMethod("void", "write", PUBLIC_STATIC,
+					Arrays.asList(inputName, "value", DATA_OUTPUT, "out"), THROWS_IO);
+			for (VariableElement field : fields) {
+				emitWrite(jw, field.asType(), "value." + field.getSimpleName(), field);
+			}
+			jw.endMethod();
+			jw.emitEmptyLine();
+
+			jw.beginMethod(inputName, "read", PUBLIC_STATIC,
+					Arrays.asList(DATA_INPUT, "in"), THROWS_IO);
+			List<String> arguments = new ArrayList<>();
+			for (VariableElement field : fields) {
+				String local = newLocal("f");
+				jw.emitStatement("%s %s = %s", field.asType(), local, getDefaultValue(field.asType()));
+				emitRead(jw, field.asType(), local, field);
+				arguments.add(local);
+			}
+			jw.emitStatement("return new %s(%s)", inputName, String.join(", ", arguments));
+			jw.endMethod();
+
+			jw.endType();
+		}
+		JavaFileObject jfo = filer.createSourceFile(
+				packageName.isEmpty() ? codecName : packageName + "." + codecName, type);
+		try (Writer jfoWriter = jfo.openWriter()) {
+			jfoWriter.write(writer.toString());
+		}
+	}
+
+	private String getFlatName(TypeElement type) {
+		StringBuilder sb = new StringBuilder(type.getSimpleName());
+		for (Element e = type.getEnclosingElement(); e.getKind().isClass() || e.getKind().isInterface();
+			 e = e.getEnclosingElement()) {
+			sb.insert(0, '_').insert(0, e.getSimpleName());
+		}
+		return sb.toString();
+	}
+
+	private List<VariableElement> getFields(TypeElement type) throws CodecException {
+		List<VariableElement> fields = new ArrayList<>();
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+				continue;
+			}
+			if (modifiers.contains(Modifier.PRIVATE)) {
+				throw new CodecException(field, "Fields written by a generated codec mustn't be private.");
+			}
+			fields.add(field);
+		}
+		checkSuperclassFields(type);
+		return fields;
+	}
+
+	/**
+	 * Checks that no superclass declares instance fields, which the codec would otherwise drop, as
+	 * the input's constructor only takes the fields the input declares itself.
+	 */
+	private void checkSuperclassFields(TypeElement type) throws CodecException {
+		for (TypeMirror superclass = type.getSuperclass(); superclass.getKind() == TypeKind.DECLARED;
+			 superclass = ((TypeElement) types.asElement(superclass)).getSuperclass()) {
+			TypeElement superElement = (TypeElement) types.asElement(superclass);
+			for (VariableElement field : ElementFilter.fieldsIn(superElement.getEnclosedElements())) {
+				Set<Modifier> modifiers = field.getModifiers();
+				if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)) {
+					throw new CodecException(type, "A generated codec can't write field " + field.getSimpleName()
+							+ " inherited from " + superElement.getQualifiedName()
+							+ ", declare all the fields in the input itself, or make them transient.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that there's a constructor that takes all the fields, in order of their declaration.
+	 */
+	private void checkConstructor(TypeElement type, List<VariableElement> fields)
+			throws CodecException {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getModifiers().contains(Modifier.PRIVATE)
+					|| constructor.getParameters().size() != fields.size()) {
+				continue;
+			}
+			boolean matches = true;
+			for (int i = 0; i < fields.size(); i++) {
+				if (!types.isSameType(constructor.getParameters().get(i).asType(), fields.get(i).asType())) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				return;
+			}
+		}
+		throw new CodecException(type, "A generated codec requires a non-private constructor that takes"
+				+ " all non-static, non-transient fields in the order in which they're declared.");
+	}
+
+	private void emitWrite(MmapJavaWriter jw, TypeMirror type, String expr, Element element)
+			throws IOException, CodecException {
+		if (type.getKind().isPrimitive()) {
+			jw.emitStatement("out.%s(%s)", getPrimitiveMethod("write", type), expr);
+			return;
+		}
+		if (type.getKind() == TypeKind.ARRAY) {
+			TypeMirror componentType = ((ArrayType) type).getComponentType();
+			checkArrayComponent(componentType, element);
+			String item = newLocal("e");
+			jw.beginControlFlow("if (%s == null)", expr);
+			jw.emitStatement("out.writeInt(-1)");
+			jw.nextControlFlow("else");
+			jw.emitStatement("out.writeInt(%s.length)", expr);
+			jw.beginControlFlow("for (%s %s : %s)", componentType, item, expr);
+			emitWrite(jw, componentType, item, element);
+			jw.endControlFlow();
+			jw.endControlFlow();
+			return;
+		}
+		if (type.getKind() != TypeKind.DECLARED) {
+			throw unsupported(type, element);
+		}
+		if (types.isSameType(type, stringType)) {
+			jw.emitStatement("%s.writeString(out, %s)", DataMergeCodec.class.getName(), expr);
+		} else if (isCollection(type)) {
+			TypeMirror itemType = getTypeArgument(type, 0, 1, element);
+			String item = newLocal("e");
+			jw.beginControlFlow("if (%s == null)", expr);
+			jw.emitStatement("out.writeInt(-1)");
+			jw.nextControlFlow("else");
+			jw.emitStatement("out.writeInt(%s.size())", expr);
+			jw.beginControlFlow("for (%s %s : %s)", itemType, item, expr);
+			emitWrite(jw, itemType, item, element);
+			jw.endControlFlow();
+			jw.endControlFlow();
+		} else if (isMap(type)) {
+			TypeMirror keyType = getTypeArgument(type, 0, 2, element);
+			TypeMirror valueType = getTypeArgument(type, 1, 2, element);
+			String entry = newLocal("e");
+			jw.beginControlFlow("if (%s == null)", expr);
+			jw.emitStatement("out.writeInt(-1)");
+			jw.nextControlFlow("else");
+			jw.emitStatement("out.writeInt(%s.size())", expr);
+			jw.beginControlFlow("for (java.util.Map.Entry<? extends %s, ? extends %s> %s : %s.entrySet())",
+					keyType, valueType, entry, expr);
+			emitWrite(jw, keyType, entry + ".getKey()", element);
+			emitWrite(jw, valueType, entry + ".getValue()", element);
+			jw.endControlFlow();
+			jw.endControlFlow();
+		} else {
+			jw.emitStatement("out.writeBoolean(%s != null)", expr);
+			jw.beginControlFlow("if (%s != null)", expr);
+			TypeMirror unboxedType = getUnboxedType(type);
+			TypeElement typeElement = (TypeElement) types.asElement(type);
+			if (unboxedType != null) {
+				emitWrite(jw, unboxedType, expr, element);
+			} else if (typeElement.getKind() == ElementKind.ENUM) {
+				jw.emitStatement("out.writeInt(%s.ordinal())", expr);
+			} else if (typeElement.getAnnotation(GenerateMergeCodec.class) != null) {
+				jw.emitStatement("%s.write(%s, out)", getCodecName(typeElement), expr);
+			} else {
+				throw unsupported(type, element);
+			}
+			jw.endControlFlow();
+		}
+	}
+
+	/**
+	 * Emits statements that read a value of the provided type, and assign it to target, which
+	 * already holds the default value of the type.
+	 */
+	private void emitRead(MmapJavaWriter jw, TypeMirror type, String target, Element element)
+			throws IOException, CodecException {
+		if (type.getKind().isPrimitive()) {
+			jw.emitStatement("%s = in.%s()", target, getPrimitiveMethod("read", type));
+			return;
+		}
+		if (type.getKind() == TypeKind.ARRAY) {
+			TypeMirror componentType = ((ArrayType) type).getComponentType();
+			String length = newLocal("length");
+			String array = newLocal("a");
+			String index = newLocal("i");
+			String item = newLocal("e");
+			jw.emitStatement("int %s = in.readInt()", length);
+			jw.beginControlFlow("if (%s >= 0)", length);
+			jw.emitStatement("%s %s = new %s[%s]", type, array, types.erasure(componentType), length);
+			jw.beginControlFlow("for (int %s = 0; %s < %s; %s++)", index, index, length, index);
+			jw.emitStatement("%s %s = %s", componentType, item, getDefaultValue(componentType));
+			emitRead(jw, componentType, item, element);
+			jw.emitStatement("%s[%s] = %s", array, index, item);
+			jw.endControlFlow();
+			jw.emitStatement("%s = %s", target, array);
+			jw.endControlFlow();
+			return;
+		}
+		if (types.isSameType(type, stringType)) {
+			jw.emitStatement("%s = %s.readString(in)", target, DataMergeCodec.class.getName());
+		} else if (isCollection(type)) {
+			TypeMirror itemType = getTypeArgument(type, 0, 1, element);
+			String size = newLocal("size");
+			String collection = newLocal("c");
+			String index = newLocal("i");
+			String item = newLocal("e");
+			jw.emitStatement("int %s = in.readInt()", size);
+			jw.beginControlFlow("if (%s >= 0)", size);
+			jw.emitStatement("%s<%s> %s = new %s<>()", getImplementation(type, element), itemType,
+					collection, getImplementation(type, element));
+			jw.beginControlFlow("for (int %s = 0; %s < %s; %s++)", index, index, size, index);
+			jw.emitStatement("%s %s = null", itemType, item);
+			emitRead(jw, itemType, item, element);
+			jw.emitStatement("%s.add(%s)", collection, item);
+			jw.endControlFlow();
+			jw.emitStatement("%s = %s", target, collection);
+			jw.endControlFlow();
+		} else if (isMap(type)) {
+			TypeMirror keyType = getTypeArgument(type, 0, 2, element);
+			TypeMirror valueType = getTypeArgument(type, 1, 2, element);
+			String size = newLocal("size");
+			String map = newLocal("m");
+			String index = newLocal("i");
+			String key = newLocal("k");
+			String value = newLocal("v");
+			jw.emitStatement("int %s = in.readInt()", size);
+			jw.beginControlFlow("if (%s >= 0)", size);
+			jw.emitStatement("%s<%s, %s> %s = new %s<>()", getImplementation(type, element), keyType,
+					valueType, map, getImplementation(type, element));
+			jw.beginControlFlow("for (int %s = 0; %s < %s; %s++)", index, index, size, index);
+			jw.emitStatement("%s %s = null", keyType, key);
+			emitRead(jw, keyType, key, element);
+			jw.emitStatement("%s %s = null", valueType, value);
+			emitRead(jw, valueType, value, element);
+			jw.emitStatement("%s.put(%s, %s)", map, key, value);
+			jw.endControlFlow();
+			jw.emitStatement("%s = %s", target, map);
+			jw.endControlFlow();
+		} else {
+			jw.beginControlFlow("if (in.readBoolean())");
+			TypeMirror unboxedType = getUnboxedType(type);
+			TypeElement typeElement = (TypeElement) types.asElement(type);
+			if (unboxedType != null) {
+				jw.emitStatement("%s = in.%s()", target, getPrimitiveMethod("read", unboxedType));
+			} else if (typeElement.getKind() == ElementKind.ENUM) {
+				jw.emitStatement("%s = %s.values()[in.readInt()]", target, types.erasure(type));
+			} else if (typeElement.getAnnotation(GenerateMergeCodec.class) != null) {
+				jw.emitStatement("%s = %s.read(in)", target, getCodecName(typeElement));
+			} else {
+				throw unsupported(type, element);
+			}
+			jw.endControlFlow();
+		}
+	}
+
+	private String getPrimitiveMethod(String prefix, TypeMirror type) {
+		String name = type.getKind().name();
+		return prefix + name.charAt(0) + name.substring(1).toLowerCase();
+	}
+
+	private String getDefaultValue(TypeMirror type) {
+		switch (type.getKind()) {
+			case BOOLEAN:
+				return "false";
+			case BYTE:
+			case SHORT:
+			case INT:
+				return "0";
+			case LONG:
+				return "0L";
+			case CHAR:
+				return "'\\0'";
+			case FLOAT:
+				return "0f";
+			case DOUBLE:
+				return "0.0";
+			default:
+				return "null";
+		}
+	}
+
+	private TypeMirror getUnboxedType(TypeMirror type) {
+		try {
+			return types.unboxedType(type);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private boolean isCollection(TypeMirror type) {
+		return types.isAssignable(types.erasure(type), collectionType);
+	}
+
+	private boolean isMap(TypeMirror type) {
+		return types.isAssignable(types.erasure(type), mapType);
+	}
+
+	/**
+	 * Generic arrays can't be created, so only simple component types are allowed.
+	 */
+	private void checkArrayComponent(TypeMirror componentType, Element element) throws CodecException {
+		if (componentType.getKind() == TypeKind.ARRAY
+				|| (componentType.getKind() == TypeKind.DECLARED
+				&& !((DeclaredType) componentType).getTypeArguments().isEmpty())) {
+			throw unsupported(componentType, element);
+		}
+	}
+
+	private TypeMirror getTypeArgument(TypeMirror type, int index, int count, Element element)
+			throws CodecException {
+		List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+		if (arguments.size() != count) {
+			throw new CodecException(element, "Collections and maps written by a generated codec must"
+					+ " declare their type arguments, found " + type);
+		}
+		TypeMirror argument = arguments.get(index);
+		if (argument.getKind() == TypeKind.WILDCARD) {
+			argument = ((WildcardType) argument).getExtendsBound();
+			if (argument == null) {
+				throw unsupported(type, element);
+			}
+		}
+		if (argument.getKind() != TypeKind.DECLARED && argument.getKind() != TypeKind.ARRAY) {
+			throw unsupported(type, element);
+		}
+		return argument;
+	}
+
+	/**
+	 * @return The class instantiated when reading a collection or map of the provided type.
+	 */
+	private String getImplementation(TypeMirror type, Element element) throws CodecException {
+		TypeElement typeElement = (TypeElement) types.asElement(type);
+		String name = typeElement.getQualifiedName().toString();
+		if (IMPLEMENTATIONS.containsKey(name)) {
+			return IMPLEMENTATIONS.get(name);
+		}
+		if (typeElement.getKind() == ElementKind.CLASS
+				&& !typeElement.getModifiers().contains(Modifier.ABSTRACT)) {
+			return name;
+		}
+		throw unsupported(type, element);
+	}
+
+	private String getCodecName(TypeElement typeElement) {
+		String packageName = elements.getPackageOf(typeElement).getQualifiedName().toString();
+		String codecName = getCodecClassName(getFlatName(typeElement));
+		return packageName.isEmpty() ? codecName : packageName + "." + codecName;
+	}
+
+	private String newLocal(String prefix) {
+		return prefix + localCount++;
+	}
+
+	private CodecException unsupported(TypeMirror type, Element element) {
+		return new CodecException(element, "Type " + type + " isn't supported by generated codecs."
+				+ " Annotate it with @" + GenerateMergeCodec.class.getSimpleName()
+				+ " or use a DataMergeCodec instead.");
+	}
+
+	/**
+	 * Thrown when a codec can't be generated for the provided element.
+	 */
+	static final class CodecException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		final Element element;
+
+		CodecException(Element element, String message) {
+			super(message);
+			this.element = element;
+		}
+	}
+}
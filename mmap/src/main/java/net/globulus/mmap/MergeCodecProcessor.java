@@ -0,0 +1,56 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates reflection-free {@link MergeCodec}s for {@link MergeInput}s annotated with
+ * {@link GenerateMergeCodec}. It's registered as a service, so it runs whenever MMAP is on the
+ * annotation processor path of the module that declares your merge input.
+ */
+public final class MergeCodecProcessor extends AbstractProcessor {
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(GenerateMergeCodec.class.getCanonicalName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        MergeCodecCodeGen codeGen = new MergeCodecCodeGen(processingEnv.getFiler(),
+                processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+        for (Element element : roundEnv.getElementsAnnotatedWith(GenerateMergeCodec.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "Only classes can be annotated with @"
+                        + GenerateMergeCodec.class.getSimpleName());
+                continue;
+            }
+            try {
+                codeGen.generate((TypeElement) element);
+            } catch (MergeCodecCodeGen.CodecException e) {
+                error(e.element, e.getMessage());
+            } catch (IOException e) {
+                error(element, "Unable to write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
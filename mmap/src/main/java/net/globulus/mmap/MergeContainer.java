@@ -0,0 +1,226 @@
+package net.globulus.mmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * A single resource that holds the payloads of all the processors of a module that share it, see
+ * {@link SharedMergeStore}. The container starts with an index of its payloads, by processor name
+ * and merge id, so that readers can find a payload without reading the others. Containers are
+ * named after the hash of their contents, so that modules can write them without knowing about
+ * each other.
+ */
+final class MergeContainer {
+
+	static final String DIR = "META-INF/mmap";
+	static final String PREFIX = "MergeContainer_";
+	static final String EXTENSION = ".mmap";
+
+	private static final int MAGIC_0 = 'M';
+	private static final int MAGIC_1 = 'C';
+	private static final int VERSION = 1;
+	private static final int NAME_HASH_LENGTH = 8;
+
+	private final URL url;
+	private final Map<String, Map<String, Entry>> entries;
+
+	private MergeContainer(URL url, Map<String, Map<String, Entry>> entries) {
+		this.url = url;
+		this.entries = entries;
+	}
+
+	/**
+	 * Reads the index of the container at the provided URL, without reading any of its payloads.
+	 */
+	static MergeContainer read(URL url) throws IOException {
+		try (DataInputStream in = new DataInputStream(url.openStream())) {
+			if (in.read() != MAGIC_0 || in.read() != MAGIC_1) {
+				throw new IOException("Invalid merge container " + url);
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported merge container version " + version);
+			}
+			int indexLength = in.readInt();
+			int offset = 2 + 1 + 4 + indexLength;
+			int count = in.readInt();
+			Map<String, Map<String, Entry>> entries = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String processorName = in.readUTF();
+				String mergeId = in.readUTF();
+				int length = in.readInt();
+				Map<String, Entry> processorEntries = entries.get(processorName);
+				if (processorEntries == null) {
+					processorEntries = new LinkedHashMap<>();
+					entries.put(processorName, processorEntries);
+				}
+				processorEntries.put(mergeId, new Entry(offset, length));
+				offset += length;
+			}
+			return new MergeContainer(url, entries);
+		}
+	}
+
+	/**
+	 * @return Merge ids of the provided processor's payloads in this container.
+	 */
+	List<String> listMerges(String processorName) {
+		Map<String, Entry> processorEntries = entries.get(processorName);
+		if (processorEntries == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<>(processorEntries.keySet());
+	}
+
+	/**
+	 * @return Stream of the payload, or null if this container doesn't hold it.
+	 */
+	InputStream read(String processorName, String mergeId) throws IOException {
+		Map<String, Entry> processorEntries = entries.get(processorName);
+		Entry entry = (processorEntries != null) ? processorEntries.get(mergeId) : null;
+		if (entry == null) {
+			return null;
+		}
+		byte[] payload = new byte[entry.length];
+		try (DataInputStream in = new DataInputStream(url.openStream())) {
+			long skipped = 0;
+			while (skipped < entry.offset) {
+				long n = in.skip(entry.offset - skipped);
+				if (n <= 0) {
+					in.readByte(); // Throws at the end of the stream
+					n = 1;
+				}
+				skipped += n;
+			}
+			in.readFully(payload);
+		}
+		return new ByteArrayInputStream(payload);
+	}
+
+	/**
+	 * Collects the payloads of all the processors of a compilation that share a container, and
+	 * writes them all at once. Originating elements are referenced weakly, as writers are held by
+	 * the {@link MergeIndex} of their compilation, which mustn't reference the compilation back.
+	 */
+	static final class Writer {
+
+		private final Map<String, byte[]> payloads = new LinkedHashMap<>();
+		private final List<WeakReference<Element>> originatingElements = new ArrayList<>();
+		private boolean written;
+
+		/**
+		 * @return false if the container has already been written, in which case the payload
+		 * wasn't added.
+		 */
+		synchronized boolean add(String processorName, String mergeId, byte[] payload,
+								 Element... originatingElements) {
+			if (written) {
+				return false;
+			}
+			payloads.put(processorName + "\n" + mergeId, payload);
+			for (Element element : originatingElements) {
+				this.originatingElements.add(new WeakReference<>(element));
+			}
+			return true;
+		}
+
+		/**
+		 * Writes the container, if any payloads were added to it and it hasn't been written yet.
+		 * Payloads can't be added once the container is written.
+		 */
+		synchronized void write(Filer filer, ProcessorLog processorLog) {
+			if (written) {
+				return;
+			}
+			written = true;
+			Set<Element> elements = new LinkedHashSet<>();
+			for (WeakReference<Element> reference : originatingElements) {
+				Element element = reference.get();
+				if (element != null) {
+					elements.add(element);
+				}
+			}
+			originatingElements.clear();
+			if (payloads.isEmpty()) {
+				return;
+			}
+			try {
+				ByteArrayOutputStream index = new ByteArrayOutputStream();
+				DataOutputStream indexStream = new DataOutputStream(index);
+				indexStream.writeInt(payloads.size());
+				List<byte[]> hashParts = new ArrayList<>(payloads.size() * 2);
+				for (Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+					String[] key = payload.getKey().split("\n", 2);
+					indexStream.writeUTF(key[0]);
+					indexStream.writeUTF(key[1]);
+					indexStream.writeInt(payload.getValue().length);
+					hashParts.add(payload.getValue());
+				}
+				indexStream.flush();
+				hashParts.add(0, index.toByteArray());
+				String name = PREFIX + toHex(MergePayload.hash(hashParts.toArray(new byte[0][])))
+						+ EXTENSION;
+				processorLog.warn(null, "Creating merge container " + name);
+				FileObject resource = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+						DIR + "/" + name, elements.toArray(new Element[0]));
+				try (OutputStream os = resource.openOutputStream()) {
+					DataOutputStream dos = new DataOutputStream(os);
+					dos.write(MAGIC_0);
+					dos.write(MAGIC_1);
+					dos.write(VERSION);
+					dos.writeInt(index.size());
+					index.writeTo(dos);
+					for (byte[] payload : payloads.values()) {
+						dos.write(payload);
+					}
+					dos.flush();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				processorLog.error(null, "Unable to write merge container: " + e.getMessage());
+			}
+			payloads.clear();
+		}
+
+		private static String toHex(byte[] hash) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < NAME_HASH_LENGTH; i++) {
+				sb.append(String.format("%02x", hash[i]));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Position of a single payload in the container.
+	 */
+	private static final class Entry {
+
+		final int offset;
+		final int length;
+
+		Entry(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -2,31 +2,55 @@ package net.globulus.mmap;
 
 import net.globulus.mmap.util.MmapJavaWriter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.Modifier;
+import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
 
 /**
- * Generates the merge files, which are classes that contain byte array of serialized
- * {@link MergeInput}s.
+ * Generates the merge files, which are classes that contain Base64 string constants of
+ * {@link MergeInput}s encoded by a {@link MergeCodec}.
  */
 final class MergeFileCodeGen {
 
+	static final String RESOURCE_EXTENSION = ".mmap";
+
 	private static final String CLASS_NAME_FORMAT = "%sMerge_%d";
-	private static final int BYTE_STEP = 8_000;
+	private static final String CHUNK_CLASS_NAME_FORMAT = "%sMerge_%s_%d";
+	private static final String MERGE_ID_FORMAT = "%s_%d";
+	private static final String HEAD_CLASS_NAME_FORMAT = "%sMergeHead_%s";
+	private static final String RESOURCE_NAME_FORMAT = "%sMerge_%s" + RESOURCE_EXTENSION;
+	/**
+	 * A string constant is stored as a single CONSTANT_Utf8 entry, which can't be longer than
+	 * 65535 bytes. Base64 only uses ASCII chars, so each char takes a single byte.
+	 */
+	private static final int MAX_CONSTANT_LENGTH = 65_535;
+	private static final int MAX_CHUNK_SIZE = MAX_CONSTANT_LENGTH / 4 * 3;
 	private static final Set<Modifier> PSF_MODIFIERS = EnumSet.of(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL);
+	private static final char[] BASE64_CHARS =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	/**
+	 * Size of the buffer that chunks are encoded into on their way to the source file, which has to
+	 * be a multiple of 4, the size of a Base64 group.
+	 */
+	private static final int BASE64_BUFFER_SIZE = 4096;
 
 	static final String MERGE_FIELD_NAME = "MERGE";
 	static final String NEXT_FIELD_NAME = "NEXT";
+	static final String GENERATION_FIELD_NAME = "GENERATION";
+	static final String CHUNKS_FIELD_NAME = "CHUNKS";
+	static final String CHUNK_COUNT_FIELD_NAME = "CHUNK_COUNT";
+	static final String CHUNK_SEPARATOR = ",";
 
 	private final String packageName;
 	private final String processorName;
@@ -44,17 +68,97 @@ final class MergeFileCodeGen {
 		}
 	}
 
+	/**
+	 * @return Name of a merge class written by older versions of MMAP, which were indexed by time.
+	 */
 	static String getClassName(String processorName, long index) {
 		return String.format(CLASS_NAME_FORMAT, processorName, index);
 	}
 
-	void generate(Filer filer, long timestamp, MergeInput input) {
+	static String getChunkClassName(String processorName, String mergeId, int index) {
+		return String.format(CHUNK_CLASS_NAME_FORMAT, processorName, mergeId, index);
+	}
+
+	/**
+	 * A merge id identifies the merge files written by a single module. It's based on the module's
+	 * generation, i.e on how many modules above the current one have written merge files, which
+	 * makes merge files discoverable without scanning timestamps.
+	 * @param moduleId Id of the module writing the merge files, or null if it doesn't have one. With
+	 *                 a module id, sibling modules at the same generation never share merge ids.
+	 */
+	static String getMergeId(String moduleId, int generation) {
+		if (moduleId == null) {
+			return Integer.toString(generation);
+		}
+		return String.format(MERGE_ID_FORMAT, moduleId, generation);
+	}
+
+	/**
+	 * @return Id of the module that wrote the merge with the provided id, or null if it's named
+	 * only after its generation.
+	 */
+	static String getModuleId(String mergeId) {
+		int separator = mergeId.lastIndexOf('_');
+		return (separator > 0) ? mergeId.substring(0, separator) : null;
+	}
+
+	/**
+	 * @return Generation of the provided merge id, or -1 if it isn't a valid one.
+	 */
+	static int getGeneration(String mergeId) {
 		try {
-			byte[] bytes = convertToBytes(input);
-			for (int i = 0, count = 0; i < bytes.length; i += BYTE_STEP, count++) {
-				String className = getClassName(processorName, timestamp + count);
+			return Integer.parseInt(mergeId.substring(mergeId.lastIndexOf('_') + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static String getHeadClassName(String processorName, String mergeId) {
+		return String.format(HEAD_CLASS_NAME_FORMAT, processorName, mergeId);
+	}
+
+	static String getResourceName(String processorName, String mergeId) {
+		return String.format(RESOURCE_NAME_FORMAT, processorName, mergeId);
+	}
+
+	/**
+	 * Writes the payload as a single binary resource instead of merge classes. This way the payload
+	 * doesn't go through javac, and doesn't add any classes to the module.
+	 * @param bytes Payload written by {@link MergePayload#write(MergeCodec, Object, int, List, boolean)}.
+	 * @param originatingElements Elements the payload was created from, for incremental processing.
+	 */
+	void generateResource(Filer filer, String mergeId, byte[] bytes, Element... originatingElements) {
+		String resourceName = getResourceName(processorName, mergeId);
+		processorLog.warn(null, "Creating resource " + resourceName);
+		try {
+			FileObject fo = filer.createResource(StandardLocation.CLASS_OUTPUT, packageName, resourceName,
+					originatingElements);
+			try (OutputStream os = fo.openOutputStream()) {
+				os.write(bytes);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the payload to merge classes, followed by their head class. All of them are named after
+	 * the provided merge id, so that modules built at the same time never write the same classes.
+	 * Each chunk is Base64-encoded straight into its source file through a single reusable buffer,
+	 * so generating merge classes takes the same memory regardless of the size of the payload.
+	 * @param bytes Payload written by {@link MergePayload#write(MergeCodec, Object, int, List, boolean)}.
+	 * @param originatingElements Elements the payload was created from, for incremental processing.
+	 */
+	void generate(Filer filer, String mergeId, int generation, byte[] bytes, Element... originatingElements) {
+		try {
+			int chunkSize = getChunkSize(bytes.length);
+			char[] buffer = new char[BASE64_BUFFER_SIZE];
+			List<String> chunks = new ArrayList<>();
+			for (int i = 0, count = 0; i < bytes.length; i += chunkSize, count++) {
+				String className = getChunkClassName(processorName, mergeId, count);
+				chunks.add(className);
 				processorLog.warn(null, "Creating file " + className);
-				JavaFileObject jfo = filer.createSourceFile(packageName + "." + className);
+				JavaFileObject jfo = filer.createSourceFile(packageName + "." + className, originatingElements);
 				Writer writer = jfo.openWriter();
 				try (MmapJavaWriter jw = new MmapJavaWriter(writer)) {
 					jw.emitPackage(packageName);
@@ -64,29 +168,90 @@ final class MergeFileCodeGen {
 					jw.beginType(className, "class", EnumSet.of(Modifier.PUBLIC), null);
 					jw.emitEmptyLine();
 
-					jw.emitField("byte[]", MERGE_FIELD_NAME, PSF_MODIFIERS,
-							fromBytes(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + BYTE_STEP))));
-
 					jw.emitField("boolean", NEXT_FIELD_NAME, PSF_MODIFIERS,
-							Boolean.toString(i < bytes.length - BYTE_STEP));
+							Boolean.toString(i < bytes.length - chunkSize));
+
+					// Bypass the Java writer, which would need the whole chunk as a string literal
+					writer.write(jw.getIndent());
+					writer.write("public static final String " + MERGE_FIELD_NAME + " = \"");
+					writeBase64(writer, bytes, i, Math.min(bytes.length, i + chunkSize), buffer);
+					writer.write("\";\n");
 
 					jw.endType();
 				}
 			}
+			generateHead(filer, mergeId, generation, chunks, originatingElements);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private String fromBytes(byte[] bytes) {
-		return Arrays.toString(bytes).replace('[', '{').replace(']', '}');
+	/**
+	 * Splits the payload into as few chunks as the constant pool allows, and then evens them out
+	 * so that the last chunk isn't much smaller than the others.
+	 */
+	private static int getChunkSize(int length) {
+		int chunkCount = Math.max(1, (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		int chunkSize = (length + chunkCount - 1) / chunkCount;
+		// Keep chunks aligned to Base64 groups, so that none of them needs padding but the last one
+		return Math.min(MAX_CHUNK_SIZE, Math.max(3, (chunkSize + 2) / 3 * 3));
 	}
 
-	private byte[] convertToBytes(Object object) throws IOException {
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			 ObjectOutput out = new ObjectOutputStream(bos)) {
-			out.writeObject(object);
-			return bos.toByteArray();
+	/**
+	 * Writes the head class that lists the exact chunk classes written by
+	 * {@link #generate(Filer, String, int, byte[], Element...)}, so that the next module can read
+	 * them with a single lookup.
+	 */
+	private void generateHead(Filer filer, String mergeId, int generation, List<String> chunks,
+							  Element... originatingElements) throws IOException {
+		String className = getHeadClassName(processorName, mergeId);
+		processorLog.warn(null, "Creating file " + className);
+		JavaFileObject jfo = filer.createSourceFile(packageName + "." + className, originatingElements);
+		Writer writer = jfo.openWriter();
+		try (MmapJavaWriter jw = new MmapJavaWriter(writer)) {
+			jw.emitPackage(packageName);
+			jw.emitEmptyLine();
+
+			jw.emitJavadoc("Generated class by @%s. Do not modify this code!", processorName);
+			jw.beginType(className, "class", EnumSet.of(Modifier.PUBLIC), null);
+			jw.emitEmptyLine();
+
+			jw.emitField("int", GENERATION_FIELD_NAME, PSF_MODIFIERS, Integer.toString(generation));
+			jw.emitField("String", CHUNKS_FIELD_NAME, PSF_MODIFIERS,
+					MmapJavaWriter.stringLiteral(String.join(CHUNK_SEPARATOR, chunks)));
+			jw.emitField("int", CHUNK_COUNT_FIELD_NAME, PSF_MODIFIERS, Integer.toString(chunks.size()));
+
+			jw.endType();
+		}
+	}
+
+	/**
+	 * Writes the provided range of bytes to the writer, encoded the same way as by
+	 * {@link java.util.Base64.Encoder}. Base64 chars don't need escaping in string literals.
+	 * @param buffer Buffer to encode the bytes into, of {@link #BASE64_BUFFER_SIZE} chars.
+	 */
+	private static void writeBase64(Writer writer, byte[] bytes, int from, int to, char[] buffer)
+			throws IOException {
+		int length = 0;
+		int i = from;
+		for (; i + 3 <= to; i += 3) {
+			int group = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			buffer[length++] = BASE64_CHARS[group >>> 18];
+			buffer[length++] = BASE64_CHARS[(group >>> 12) & 0x3f];
+			buffer[length++] = BASE64_CHARS[(group >>> 6) & 0x3f];
+			buffer[length++] = BASE64_CHARS[group & 0x3f];
+			if (length == buffer.length) {
+				writer.write(buffer, 0, length);
+				length = 0;
+			}
+		}
+		if (i < to) {
+			int group = (bytes[i] & 0xff) << 16 | ((i + 1 < to) ? (bytes[i + 1] & 0xff) << 8 : 0);
+			buffer[length++] = BASE64_CHARS[group >>> 18];
+			buffer[length++] = BASE64_CHARS[(group >>> 12) & 0x3f];
+			buffer[length++] = (i + 1 < to) ? BASE64_CHARS[(group >>> 6) & 0x3f] : '=';
+			buffer[length++] = '=';
 		}
+		writer.write(buffer, 0, length);
 	}
 }
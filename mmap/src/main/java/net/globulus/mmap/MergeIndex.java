@@ -0,0 +1,238 @@
+package net.globulus.mmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
+
+/**
+ * Indexes the merge files of a single compilation, so that all the processors that run in it share
+ * a single discovery. The merge package is listed once, across all the classpath directories and
+ * jars that contain it, and the listing of each processor's merge files is derived from it once,
+ * keyed by processor name. The index also holds the {@link MergeContainer}s found upstream, and
+ * the one the compilation writes.
+ * <p>Indices are kept weakly, by compilation, so they mustn't reference anything that references
+ * the compilation back, e.g its {@link Elements} or any of its {@link Element}s, or they'd live
+ * for as long as the compiler process, e.g a Gradle daemon, does.</p>
+ */
+final class MergeIndex {
+
+	private static final Map<Object, MergeIndex> INDICES = new WeakHashMap<>();
+
+	private final WeakReference<Elements> elements;
+	private final Map<String, Set<String>> fileNames = new HashMap<>();
+	private final Map<String, Listing> listings = new HashMap<>();
+	private final MergeContainer.Writer containerWriter = new MergeContainer.Writer();
+	private List<MergeContainer> containers;
+
+	private MergeIndex(Elements elements) {
+		this.elements = new WeakReference<>(elements);
+	}
+
+	/**
+	 * @return The index of the compilation the manager runs in. Compilations are told apart by
+	 * {@link MergeManager#elements}, which javac shares between all the processors, or by
+	 * {@link MergeManager#filer} if it isn't set, which build tools may wrap for each processor.
+	 */
+	static MergeIndex forCompilation(MergeManager<?> manager) {
+		Object compilation = (manager.elements != null) ? manager.elements : manager.filer;
+		synchronized (INDICES) {
+			MergeIndex index = INDICES.get(compilation);
+			if (index == null) {
+				index = new MergeIndex(manager.elements);
+				INDICES.put(compilation, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @return Merge files of the provided processor, listed on first use.
+	 */
+	synchronized Listing getListing(String packageName, String processorName, ProcessorLog processorLog) {
+		String key = packageName + ":" + processorName;
+		Listing listing = listings.get(key);
+		if (listing == null) {
+			listing = new Listing(getFileNames(packageName, processorLog), processorName);
+			listings.put(key, listing);
+		}
+		return listing;
+	}
+
+	/**
+	 * @return All the merge containers on the classpath, read on first use.
+	 */
+	synchronized List<MergeContainer> getContainers(ProcessorLog processorLog) {
+		if (containers != null) {
+			return containers;
+		}
+		containers = new ArrayList<>();
+		try {
+			Enumeration<URL> urls = MergeStore.class.getClassLoader().getResources(MergeContainer.DIR);
+			while (urls.hasMoreElements()) {
+				URL dir = urls.nextElement();
+				String dirPath = dir.toExternalForm();
+				if (!dirPath.endsWith("/")) {
+					dirPath += "/";
+				}
+				for (String name : listFileNames(dir, MergeContainer.DIR)) {
+					if (name.startsWith(MergeContainer.PREFIX) && name.endsWith(MergeContainer.EXTENSION)) {
+						processorLog.warn(null, "Found merge container " + name);
+						containers.add(MergeContainer.read(new URL(dirPath + name)));
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return containers;
+	}
+
+	/**
+	 * @return The container shared by all the processors of the compilation.
+	 */
+	MergeContainer.Writer getContainerWriter() {
+		return containerWriter;
+	}
+
+	/**
+	 * @return Names of the files in the provided package, or an empty set if it can't be listed.
+	 */
+	private Set<String> getFileNames(String packageName, ProcessorLog processorLog) {
+		Set<String> names = fileNames.get(packageName);
+		if (names != null) {
+			return names;
+		}
+		processorLog.warn(null, "Indexing merge files in package " + packageName);
+		names = new HashSet<>();
+		String packagePath = packageName.replace('.', '/');
+		try {
+			Enumeration<URL> urls = MergeStore.class.getClassLoader().getResources(packagePath);
+			while (urls.hasMoreElements()) {
+				names.addAll(listFileNames(urls.nextElement(), packagePath));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Elements elements = this.elements.get();
+		if (elements != null) {
+			PackageElement packageElement = elements.getPackageElement(packageName);
+			if (packageElement != null) {
+				for (Element element : packageElement.getEnclosedElements()) {
+					names.add(element.getSimpleName() + ClassMergeStore.CLASS_EXTENSION);
+				}
+			}
+		}
+		fileNames.put(packageName, names);
+		return names;
+	}
+
+	/**
+	 * @param url Classpath URL of the directory, either in a directory or in a jar.
+	 * @return Names of the files directly in the directory.
+	 */
+	private static List<String> listFileNames(URL url, String path) throws IOException {
+		List<String> names = new ArrayList<>();
+		if ("file".equals(url.getProtocol())) {
+			try {
+				String[] files = new File(url.toURI()).list();
+				if (files != null) {
+					Collections.addAll(names, files);
+				}
+			} catch (URISyntaxException e) {
+				e.printStackTrace();
+			}
+		} else if ("jar".equals(url.getProtocol())) {
+			JarURLConnection connection = (JarURLConnection) url.openConnection();
+			connection.setUseCaches(false);
+			try (JarFile jar = connection.getJarFile()) {
+				String dir = path + "/";
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if (name.startsWith(dir) && name.indexOf('/', dir.length()) == -1) {
+						names.add(name.substring(dir.length()));
+					}
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Merge files of a single processor.
+	 */
+	static final class Listing {
+
+		/**
+		 * Merge ids of the head classes found.
+		 */
+		final List<String> headIds = new ArrayList<>();
+
+		/**
+		 * Merge ids of the merge resources found.
+		 */
+		final List<String> resourceIds = new ArrayList<>();
+
+		/**
+		 * Indices of the merge classes written by older versions of MMAP, newest first.
+		 */
+		final List<Long> legacyIndices = new ArrayList<>();
+
+		/**
+		 * Whether the package could be listed at all. If it couldn't, merge files have to be probed.
+		 */
+		final boolean listed;
+
+		private Listing(Set<String> fileNames, String processorName) {
+			listed = !fileNames.isEmpty();
+			String headPrefix = MergeFileCodeGen.getHeadClassName(processorName, "");
+			String resourcePrefix = getResourcePrefix(processorName);
+			String legacyPrefix = MergeFileCodeGen.getClassName(processorName, 0);
+			legacyPrefix = legacyPrefix.substring(0, legacyPrefix.length() - 1);
+			for (String name : fileNames) {
+				if (name.endsWith(ClassMergeStore.CLASS_EXTENSION)) {
+					name = name.substring(0, name.length() - ClassMergeStore.CLASS_EXTENSION.length());
+					if (name.startsWith(headPrefix)) {
+						String id = name.substring(headPrefix.length());
+						if (MergeFileCodeGen.getGeneration(id) >= 0) {
+							headIds.add(id);
+						}
+					} else if (name.startsWith(legacyPrefix)) {
+						try {
+							legacyIndices.add(Long.parseLong(name.substring(legacyPrefix.length())));
+						} catch (NumberFormatException ignored) { } // A chunk class
+					}
+				} else if (name.startsWith(resourcePrefix) && name.endsWith(MergeFileCodeGen.RESOURCE_EXTENSION)) {
+					resourceIds.add(name.substring(resourcePrefix.length(),
+							name.length() - MergeFileCodeGen.RESOURCE_EXTENSION.length()));
+				}
+			}
+			Collections.sort(headIds);
+			Collections.sort(resourceIds);
+			legacyIndices.sort(Collections.reverseOrder());
+		}
+
+		private static String getResourcePrefix(String processorName) {
+			String prefix = MergeFileCodeGen.getResourceName(processorName, "");
+			return prefix.substring(0, prefix.length() - MergeFileCodeGen.RESOURCE_EXTENSION.length());
+		}
+	}
+}
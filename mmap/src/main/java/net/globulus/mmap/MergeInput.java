@@ -12,7 +12,10 @@ public interface MergeInput<T extends MergeInput<T>> extends Serializable {
 
     /**
      * Defines how does merge conflict resolution work for your input class when it's merged with
-     * the input from higher up in the module hierarchy.
+     * the input from higher up in the module hierarchy. Neither this input nor the other one may be
+     * modified, as upstream inputs are shared by later builds in the same JVM if
+     * {@link MergeManager#setMemoryCacheSize(long)} is set, and the merged input may share their
+     * state.
      * @param other The input generated by the processor run for a module higher up.
      * @return The merged input.
      */
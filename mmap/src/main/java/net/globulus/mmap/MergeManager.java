@@ -1,9 +1,21 @@
 package net.globulus.mmap;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
 
 import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
 
 /**
  * Manages all aspects of multi-module hierarchical merging of processor inputs. Put an instance of
@@ -14,6 +26,13 @@ import javax.annotation.processing.RoundEnvironment;
 public final class MergeManager<T extends MergeInput> {
 
     private static final int DEFAULT_LOOKBACK_PERIOD = 30_000;
+    private static final int MODULE_ID_LENGTH = 8;
+
+    /**
+     * Processor option that {@link #getModuleId(ProcessingEnvironment)} derives the module id
+     * from.
+     */
+    public static final String MODULE_ID_OPTION = "mmap.moduleId";
 
     final Filer filer;
     final long timestamp;
@@ -21,12 +40,25 @@ public final class MergeManager<T extends MergeInput> {
     final String processorName;
     final ShouldMergeResolver resolver;
 
-    ProcessorLog processorLog = new ProcessorLog.Stub();
+    DeferredProcessorLog processorLog = new DeferredProcessorLog(new ProcessorLog.Stub());
     int lookbackPeriod = DEFAULT_LOOKBACK_PERIOD;
+    Elements elements;
+    boolean writingResources;
+    int compressionLevel = Deflater.NO_COMPRESSION;
+    MergeCodec<T> codec;
+    File cacheDir;
+    boolean writingDeltas;
+    String moduleId;
+    boolean mergeAssociative;
+    long memoryCachePayloadBytes;
+    MergeStore store;
+    boolean sharingContainer;
+    Executor executor = ForkJoinPool.commonPool();
 
     /**
      * @param filer The {@link Filer} of your processor.
      * @param timestamp <b>Obtain this in your processor's constructor by calling {@link System#currentTimeMillis()}.</b>
+     *                  It's only used to find merge files written by older versions of MMAP.
      * @param packageName Name of the package where your processor is outputting files. Merge files will be written there.
      * @param processorName Unique name for your annotation processor.
      * @param resolver {@link ShouldMergeResolver}
@@ -49,17 +81,20 @@ public final class MergeManager<T extends MergeInput> {
     }
 
     /**
-     * Sets the {@link ProcessorLog}
+     * Sets the {@link ProcessorLog}. Call it from the processing thread, as it's the only one the
+     * log is called from, even for messages logged by work that runs on {@link #executor}.
      * @return this for fluent syntax
      */
     public MergeManager<T> setProcessorLog(ProcessorLog processorLog) {
-        this.processorLog = (processorLog != null) ? processorLog : new ProcessorLog.Stub();
+        this.processorLog = new DeferredProcessorLog((processorLog != null) ? processorLog : new ProcessorLog.Stub());
         return this;
     }
 
     /**
      * Lookback period defines how many names does the merge manager scan before to find its previous
-     * merge file. Increase this value (in ms) if your project is very large or your build machine slow.
+     * merge file. It's only used if no merge head is found, i.e for merge files written by older
+     * versions of MMAP. Increase this value (in ms) if your project is very large or your build
+     * machine slow.
      * @return this for fluent syntax
      */
     public MergeManager<T> setLookbackPeriod(int lookbackPeriod) {
@@ -67,6 +102,266 @@ public final class MergeManager<T extends MergeInput> {
         return this;
     }
 
+    /**
+     * Sets the {@link Elements} used to discover merge files. If set, the contents of
+     * {@link #packageName} are listed via it as well as via the class loader, and the listing is
+     * shared by all the merge managers that run in the same compilation with the same elements, so
+     * that processors that run together discover merge files only once.
+     * @param elements {@link javax.annotation.processing.ProcessingEnvironment#getElementUtils()}
+     *                 of your processor.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setElements(Elements elements) {
+        this.elements = elements;
+        return this;
+    }
+
+    /**
+     * If set, merge input is written as a single binary resource instead of merge classes. Resources
+     * don't have to be compiled, take a fraction of the space, and don't become a part of the
+     * module's public API. Merge files are read the same way regardless of this setting.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setWritingResources(boolean writingResources) {
+        this.writingResources = writingResources;
+        return this;
+    }
+
+    /**
+     * Sets the level at which merge input is compressed before it's written. Serialized inputs
+     * tend to be repetitive and compress well, which reduces the number of merge files. Readers
+     * don't need this setting, as the compression used is recorded in the merge files themselves.
+     * @param compressionLevel {@link Deflater} compression level between
+     *                         {@link Deflater#BEST_SPEED} and {@link Deflater#BEST_COMPRESSION},
+     *                         or {@link Deflater#DEFAULT_COMPRESSION}. Use
+     *                         {@link Deflater#NO_COMPRESSION}, the default, to turn compression off.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setCompressionLevel(int compressionLevel) {
+        assert compressionLevel >= Deflater.DEFAULT_COMPRESSION
+                && compressionLevel <= Deflater.BEST_COMPRESSION : "Invalid compression level!";
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * Sets the {@link MergeCodec} that turns inputs into merge file contents and back. By default,
+     * the codec generated for inputs annotated with {@link GenerateMergeCodec} is used, and Java
+     * serialization otherwise. {@link DataMergeCodec} is a faster and more compact alternative for
+     * {@link DataMergeInput}s.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setCodec(MergeCodec<T> codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * If set, each module writes only its own input to its merge files, along with a reference to
+     * the merge files of the module above it, instead of the whole merged input. Downstream
+     * modules follow these references and merge all the inputs in order. This way, the amount of
+     * data written grows linearly with the number of modules, instead of quadratically.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setWritingDeltas(boolean writingDeltas) {
+        this.writingDeltas = writingDeltas;
+        return this;
+    }
+
+    /**
+     * Sets the id of the current module, after which its merge files are named. Without it, merge
+     * files are named only after their generation, so sibling modules compiled at the same time,
+     * e.g with Gradle's --parallel, write merge files with the same names. Merge files named after
+     * module ids can only be found by listing their package, see {@link #setElements(Elements)}.
+     * @param moduleId Letters and digits that identify the current module among all the modules that
+     *                 use your processor, see {@link #getModuleId(ProcessingEnvironment)}.
+     *                 It has to stay the same across builds of the module, or merge files and
+     *                 cached merges of earlier builds are orphaned.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setModuleId(String moduleId) {
+        assert moduleId == null || moduleId.matches("[A-Za-z0-9]+") : "Module id must consist of letters and digits!";
+        this.moduleId = moduleId;
+        return this;
+    }
+
+    /**
+     * Declares that {@link MergeInput#mergedUp(MergeInput)} of your input is associative, i.e that
+     * merging a with the merge of b and c gives the same result as merging the merge of a and b
+     * with c. If set, upstream inputs of sibling modules, as well as the sections of
+     * {@link SectionedMergeInput}s, are decoded and merged in parallel on {@link #executor}, so
+     * both the codec and mergedUp must be safe to call from multiple threads.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setMergeAssociative(boolean mergeAssociative) {
+        this.mergeAssociative = mergeAssociative;
+        return this;
+    }
+
+    /**
+     * Sets the directory where the last merge of this processor is cached. If set, and neither the
+     * upstream merge files nor the current input have changed since the last build, the cached
+     * merge is used instead of decoding the upstream input and merging it again. Use a directory
+     * that's specific to the current module, e.g one within its build directory.
+     * @param cacheDir Cache directory, or null to turn caching off, which is the default.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
+
+    /**
+     * Sets how many decoded upstream inputs are kept for later builds in the same JVM, e.g in a
+     * Gradle daemon. Cached inputs aren't copied, but shared by all the builds and compilations
+     * that see the same upstream merge files, so neither {@link MergeInput#mergedUp(MergeInput)} nor
+     * your processor may modify an upstream input, or the merged inputs returned by
+     * {@link MergeSession#mergeInput(MergeInput)} and {@link MergeSession#readSection(String)},
+     * which may share its state.
+     * @param maxPayloadBytes Max total length, in bytes, of the payloads the cached inputs were
+     *                        decoded from, i.e of their merge files, which is smaller than the
+     *                        memory the inputs take, especially if payloads are compressed. 0 turns
+     *                        in-memory caching off, which is the default.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setMemoryCacheSize(long maxPayloadBytes) {
+        assert maxPayloadBytes >= 0 : "Memory cache size can't be negative!";
+        this.memoryCachePayloadBytes = maxPayloadBytes;
+        return this;
+    }
+
+    /**
+     * Sets the {@link MergeStore} that merge files are written to. Merge files are read both from
+     * the provided store and from the default ones, so that modules can be switched over to a
+     * different store one at a time. See {@link FileMergeStore} for an alternative to the defaults.
+     * @param store Merge store, or null to write merge classes or resources, which is the default.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setStore(MergeStore store) {
+        this.store = store;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Executor} that runs {@link MergeSession#prefetchAsync(Class)},
+     * {@link MergeSession#encodeAsync(MergeInput)}, and the parallel merges enabled by
+     * {@link #setMergeAssociative(boolean)}. Tasks never wait for each other on the executor's
+     * threads, so an executor of any size works.
+     * @param executor Executor, or null to use {@link ForkJoinPool#commonPool()}, which is the default.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setExecutor(Executor executor) {
+        this.executor = (executor != null) ? executor : ForkJoinPool.commonPool();
+        return this;
+    }
+
+    /**
+     * If set, merge input isn't written to merge files of its own, but is added to a single merge
+     * container that's shared by all the processors that run in the same compilation and set this,
+     * with a section for each of them. This keeps the number of generated files per module down to
+     * one, regardless of how many MMAP-based processors there are. The container is written by
+     * {@link #writeSharedContainer()}, so all the processors that share it need to call it once
+     * they're done. Set {@link #setElements(Elements)} as well, as build tools like Gradle wrap
+     * the {@link Filer} of each processor, and processors that don't share either of them don't
+     * share a container. Ignored if {@link #setStore(MergeStore)} is set.
+     * @return this for fluent syntax
+     */
+    public MergeManager<T> setSharingContainer(boolean sharingContainer) {
+        this.sharingContainer = sharingContainer;
+        return this;
+    }
+
+    /**
+     * Writes the merge container shared by the processors of the current compilation, see
+     * {@link #setSharingContainer(boolean)}. Call it when {@link RoundEnvironment#processingOver()}
+     * is true, after all the processors have written their merge files. The container is written
+     * only once, by whichever processor calls this first, and merge input written after that is
+     * written to merge files of its own.
+     */
+    public void writeSharedContainer() {
+        MergeIndex.forCompilation(this).getContainerWriter().write(filer, processorLog);
+    }
+
+    /**
+     * Writes the build configuration that keeps this processor's merge files out of shipped
+     * artifacts, as they're only needed at build time. Call it in the {@link Sink} module, see
+     * {@link #isSink(RoundEnvironment)}. Two files are written to the provided directory:
+     * <ul>
+     *     <li><i>&lt;processorName&gt;-mmap.pro</i>, a ProGuard / R8 configuration to add to the
+     *     sink's release build, which fails shrinking if any merge class would be kept.</li>
+     *     <li><i>&lt;processorName&gt;-mmap-excludes.txt</i>, packaging exclusion patterns that match
+     *     merge resources and merge containers, one per line, which shrinking doesn't remove.</li>
+     * </ul>
+     * @param dir Directory to write the files to, e.g one within the sink module's build directory.
+     */
+    public void writeStripRules(File dir) {
+        MergeStripRules.write(this, dir);
+    }
+
+    /**
+     * @return The store set via {@link #setStore(MergeStore)}, or the default one, depending on
+     * {@link #sharingContainer} and {@link #writingResources}.
+     */
+    MergeStore getWriteStore() {
+        if (store != null) {
+            return store;
+        }
+        if (sharingContainer) {
+            return new SharedMergeStore(this);
+        }
+        return writingResources ? new ResourceMergeStore(this) : new ClassMergeStore(this);
+    }
+
+    /**
+     * @return All the stores upstream merge files are read from, the one set via
+     * {@link #setStore(MergeStore)} first.
+     */
+    List<MergeStore> getReadStores() {
+        List<MergeStore> stores = new ArrayList<>(4);
+        if (store != null) {
+            stores.add(store);
+        }
+        stores.add(new ClassMergeStore(this));
+        stores.add(new ResourceMergeStore(this));
+        stores.add(new SharedMergeStore(this));
+        return stores;
+    }
+
+    /**
+     * @return The codec set via {@link #setCodec(MergeCodec)}, or the one generated for the class
+     * of the provided input, or Java serialization if there's none.
+     */
+    MergeCodec<T> getCodec(T input) {
+        return getCodec(input.getClass());
+    }
+
+    /**
+     * @param inputClass Class of the input, or null if it isn't known, in which case the generated
+     *                   codec can't be found.
+     * @return The codec set via {@link #setCodec(MergeCodec)}, or the one generated for the provided
+     * class, or Java serialization if there's none.
+     */
+    @SuppressWarnings("unchecked")
+    MergeCodec<T> getCodec(Class<?> inputClass) {
+        if (codec == null) {
+            if (inputClass == null) {
+                return new SerializableMergeCodec<>();
+            }
+            String codecName = MergeCodecCodeGen.getCodecClassName(inputClass);
+            try {
+                codec = (MergeCodec<T>) Class.forName(codecName, true, inputClass.getClassLoader())
+                        .getDeclaredConstructor().newInstance();
+                processorLog.warn(null, "Using generated codec " + codecName);
+            } catch (ClassNotFoundException e) {
+                codec = new SerializableMergeCodec<>();
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+                codec = new SerializableMergeCodec<>();
+            }
+        }
+        return codec;
+    }
+
     public MergeSession<T> newSession() {
         return new MergeSession<>(this);
     }
@@ -80,9 +375,68 @@ public final class MergeManager<T extends MergeInput> {
      */
     @SuppressWarnings("unchecked")
     public T manageMerging(T input) {
+        return manageMerging(input, new Element[0]);
+    }
+
+    /**
+     * Same as {@link #manageMerging(MergeInput)}, but marks the written merge files as created
+     * from the provided elements. Use this if your processor is registered as an aggregating
+     * incremental processor with Gradle.
+     * @param input Current processor's input.
+     * @param originatingElements Elements the input was created from, see
+     *                            {@link #getOriginatingElements(Set, RoundEnvironment)}.
+     * @return Merge of current input with the previous one.
+     */
+    public T manageMerging(T input, Element... originatingElements) {
         MergeSession<T> session = newSession();
         input = session.mergeInput(input);
-        session.writeMergeFiles(input);
+        session.writeMergeFiles(input, originatingElements);
         return input;
     }
+
+    /**
+     * Collects the elements your processor's input was created from, i.e all the elements
+     * annotated with the annotations your processor handles, which Gradle requires from
+     * aggregating incremental processors.
+     * @param annotations Annotations passed to your processor's
+     *                    {@link javax.annotation.processing.AbstractProcessor#process(Set, RoundEnvironment)}.
+     * @return Elements to pass to {@link #manageMerging(MergeInput, Element...)}.
+     */
+    public static Element[] getOriginatingElements(Set<? extends TypeElement> annotations,
+                                                   RoundEnvironment roundEnv) {
+        Set<Element> elements = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            elements.addAll(roundEnv.getElementsAnnotatedWith(annotation));
+        }
+        return elements.toArray(new Element[0]);
+    }
+
+    /**
+     * @return true if the current round processes the module annotated with {@link Sink}, i.e the
+     * bottom-most one.
+     */
+    public static boolean isSink(RoundEnvironment roundEnv) {
+        return !roundEnv.getElementsAnnotatedWith(Sink.class).isEmpty();
+    }
+
+    /**
+     * Derives a module id from the value of the {@value #MODULE_ID_OPTION} processor option, e.g
+     * the module's Gradle project path, which requires your processor to list the option in its
+     * supported options. Module ids are a part of the names of the generated merge classes, so
+     * the value has to stay the same across builds of the current module, incremental ones
+     * included, and across machines and checkout locations, and no other module may share it.
+     * @return Module id to pass to {@link #setModuleId(String)}, or null if the option isn't set.
+     */
+    public static String getModuleId(ProcessingEnvironment processingEnv) {
+        String source = processingEnv.getOptions().get(MODULE_ID_OPTION);
+        if (source == null) {
+            return null;
+        }
+        byte[] hash = MergePayload.hash(source.getBytes(StandardCharsets.UTF_8));
+        StringBuilder moduleId = new StringBuilder(MODULE_ID_LENGTH * 2);
+        for (int i = 0; i < MODULE_ID_LENGTH; i++) {
+            moduleId.append(String.format("%02x", hash[i]));
+        }
+        return moduleId.toString();
+    }
 }
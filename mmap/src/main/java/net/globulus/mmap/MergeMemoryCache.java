@@ -0,0 +1,91 @@
+package net.globulus.mmap;
+
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps decoded upstream inputs in memory for as long as the JVM lives, so that all the builds
+ * run by a Gradle daemon or a compiler worker share them. Inputs are keyed by processor name and
+ * payload hash, and the least recently used ones are evicted once their payloads take more space
+ * than allowed. The memory the inputs themselves take isn't measured, so payload length stands in
+ * for it. Inputs are shared as they are, so they must never be modified. Unlike {@link MergeCache}, this skips reading and decoding upstream payloads
+ * altogether, and it's safe to use from concurrent compilations.
+ */
+final class MergeMemoryCache {
+
+	private static final MergeMemoryCache INSTANCE = new MergeMemoryCache();
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long payloadBytes;
+
+	private MergeMemoryCache() { }
+
+	static MergeMemoryCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param codec Codec the input would be decoded with. Inputs decoded with codecs loaded by a
+	 *              different class loader, e.g by a previous build, are never returned, as their
+	 *              classes differ from the current ones.
+	 * @return The cached input, or null if there's none.
+	 */
+	synchronized Object get(String processorName, byte[] hash, MergeCodec<?> codec) {
+		String key = getKey(processorName, hash);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.classLoader != codec.getClass().getClassLoader()) {
+			remove(key);
+			return null;
+		}
+		return entry.input;
+	}
+
+	/**
+	 * Caches the provided input, and evicts the least recently used ones if needed.
+	 * @param length Length of the payload the input was decoded from, in bytes.
+	 * @param maxPayloadBytes Max total length of the payloads of all the cached inputs, in bytes.
+	 */
+	synchronized void put(String processorName, byte[] hash, MergeCodec<?> codec, Object input, int length,
+						  long maxPayloadBytes) {
+		if (length > maxPayloadBytes) {
+			return;
+		}
+		String key = getKey(processorName, hash);
+		remove(key);
+		entries.put(key, new Entry(input, length, codec.getClass().getClassLoader()));
+		payloadBytes += length;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (payloadBytes > maxPayloadBytes && iterator.hasNext()) {
+			payloadBytes -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			payloadBytes -= entry.length;
+		}
+	}
+
+	private static String getKey(String processorName, byte[] hash) {
+		return processorName + ":" + Base64.getEncoder().encodeToString(hash);
+	}
+
+	private static final class Entry {
+
+		final Object input;
+		final int length;
+		final ClassLoader classLoader;
+
+		Entry(Object input, int length, ClassLoader classLoader) {
+			this.input = input;
+			this.length = length;
+			this.classLoader = classLoader;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package net.globulus.mmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Frames {@link MergeInput}s written to merge files. A payload starts with a short header that
+ * tells how the rest of it is encoded, so that readers don't need to know the settings of the
+ * {@link MergeManager} that wrote it. The header also holds the length and hash of the payload,
+ * which identify it without reading the rest of it, and the merge ids of the payloads it was
+ * merged with, which place it in the module graph, and the class name of the {@link MergeCodec}
+ * that encoded it, so that it isn't decoded by a different one. Payloads of {@link SectionedMergeInput}s are
+ * encoded one section at a time, and the header is followed by an index of their sections, so
+ * that each of them can be decoded on its own. Payloads written by older versions of MMAP don't
+ * have a header, and are read as they are.
+ */
+final class MergePayload {
+
+	private static final int MAGIC_0 = 'M';
+	private static final int MAGIC_1 = 'M';
+	private static final int VERSION_1 = 1;
+	private static final int VERSION_2 = 2;
+	private static final int VERSION_3 = 3;
+	private static final int VERSION_4 = 4;
+	private static final int VERSION = 5;
+	private static final int FLAG_DELTA = 1;
+	private static final int FLAG_SECTIONED = 2;
+	private static final String PARENT_SEPARATOR = ",";
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	static final int ENCODING_RAW = 0;
+	static final int ENCODING_DEFLATE = 1;
+
+	/**
+	 * Hash of the encoded payload, or null if the payload header doesn't have one.
+	 */
+	final byte[] hash;
+
+	/**
+	 * Length of the encoded payload, or -1 if the payload header doesn't have one.
+	 */
+	final int length;
+
+	/**
+	 * Merge ids of the payloads this one was merged with, or null if the header doesn't say, in
+	 * which case the payload is assumed to include everything written before it.
+	 */
+	final List<String> parents;
+
+	/**
+	 * Whether the payload holds only a single module's input, which has to be merged with its
+	 * {@link #parents}, or is complete.
+	 */
+	final boolean delta;
+
+	/**
+	 * Class name of the {@link MergeCodec} that encoded the payload, or null if the header doesn't
+	 * have one.
+	 */
+	final String codec;
+
+	/**
+	 * Stream of the decoded payload, to be passed to a {@link MergeCodec}. For sectioned payloads,
+	 * this is the stream of their encoded sections, which should be read via
+	 * {@link #openSection(String)} instead.
+	 */
+	final InputStream body;
+
+	private final int encoding;
+	private final Map<String, Section> sections;
+	private byte[] sectionData;
+
+	private MergePayload(byte[] hash, int length, List<String> parents, boolean delta, String codec,
+						 InputStream body, int encoding, Map<String, Section> sections) {
+		this.hash = hash;
+		this.length = length;
+		this.parents = parents;
+		this.delta = delta;
+		this.codec = codec;
+		this.body = body;
+		this.encoding = encoding;
+		this.sections = sections;
+	}
+
+	/**
+	 * @return The input encoded with the provided codec, without a header or compression.
+	 */
+	static <T> byte[] encode(MergeCodec<T> codec, T input) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		codec.encode(input, bos);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Encodes the input with the provided codec, and frames it with a header.
+	 * @param compressionLevel {@link Deflater} compression level, or {@link Deflater#NO_COMPRESSION}
+	 *                         to write the payload as it is.
+	 * @param parents Merge ids of the payloads the input was merged with.
+	 * @param delta Whether the input should be merged up with its parents when it's read, or is
+	 *              complete on its own.
+	 * @return The payload, header included.
+	 */
+	static <T> byte[] write(MergeCodec<T> codec, T input, int compressionLevel, List<String> parents,
+							boolean delta) throws IOException {
+		byte[] body = encode(codec, input, compressionLevel);
+		return frame(compressionLevel, delta ? FLAG_DELTA : 0, parents, getCodecId(codec), body);
+	}
+
+	/**
+	 * Same as {@link #write(MergeCodec, Object, int, List, boolean)}, but encodes and compresses
+	 * each of the provided sections separately, and writes their index ahead of them.
+	 * @param sections Sections of the input, by key.
+	 */
+	static <T> byte[] writeSections(MergeCodec<T> codec, Map<String, T> sections, int compressionLevel,
+									List<String> parents, boolean delta) throws IOException {
+		List<byte[]> bodies = new ArrayList<>(sections.size());
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream indexStream = new DataOutputStream(index);
+		indexStream.writeInt(sections.size());
+		int offset = 0;
+		for (Map.Entry<String, T> section : sections.entrySet()) {
+			byte[] body = encode(codec, section.getValue(), compressionLevel);
+			bodies.add(body);
+			indexStream.writeUTF(section.getKey());
+			indexStream.writeInt(offset);
+			indexStream.writeInt(body.length);
+			offset += body.length;
+		}
+		for (byte[] body : bodies) {
+			index.write(body);
+		}
+		int flags = FLAG_SECTIONED | (delta ? FLAG_DELTA : 0);
+		return frame(compressionLevel, flags, parents, getCodecId(codec), index.toByteArray());
+	}
+
+	private static <T> byte[] encode(MergeCodec<T> codec, T input, int compressionLevel) throws IOException {
+		if (compressionLevel == Deflater.NO_COMPRESSION) {
+			return encode(codec, input);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(compressionLevel);
+		try (OutputStream os = new DeflaterOutputStream(bos, deflater)) {
+			codec.encode(input, os);
+		} finally {
+			deflater.end();
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Frames the encoded body with a header. The payload is allocated at its exact size, so that
+	 * the body is only copied once.
+	 */
+	private static byte[] frame(int compressionLevel, int flags, List<String> parents, String codec,
+								byte[] body) throws IOException {
+		int encoding = (compressionLevel == Deflater.NO_COMPRESSION) ? ENCODING_RAW : ENCODING_DEFLATE;
+		ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.write(MAGIC_0);
+		dos.write(MAGIC_1);
+		dos.write(VERSION);
+		dos.write(encoding);
+		dos.writeInt(body.length);
+		byte[] hash = hash(body);
+		dos.writeByte(hash.length);
+		dos.write(hash);
+		dos.write(flags);
+		dos.writeUTF(String.join(PARENT_SEPARATOR, parents));
+		dos.writeUTF(codec);
+		dos.flush();
+		byte[] payload = Arrays.copyOf(header.toByteArray(), header.size() + body.length);
+		System.arraycopy(body, 0, payload, header.size(), body.length);
+		return payload;
+	}
+
+	/**
+	 * Reads the payload header from the provided stream. Nothing past the header is read until
+	 * {@link #body} is.
+	 */
+	static MergePayload read(InputStream in) throws IOException {
+		PushbackInputStream pis = new PushbackInputStream(in, 2);
+		int magic0 = pis.read();
+		int magic1 = pis.read();
+		if (magic0 != MAGIC_0 || magic1 != MAGIC_1) {
+			if (magic1 != -1) {
+				pis.unread(magic1);
+			}
+			if (magic0 != -1) {
+				pis.unread(magic0);
+			}
+			// No header, written by an older version of MMAP
+			return new MergePayload(null, -1, null, false, null, pis, ENCODING_RAW, null);
+		}
+		DataInputStream dis = new DataInputStream(pis);
+		int version = dis.readUnsignedByte();
+		if (version != VERSION && version != VERSION_4 && version != VERSION_3 && version != VERSION_2
+				&& version != VERSION_1) {
+			throw new IOException("Unsupported merge payload version " + version);
+		}
+		int encoding = dis.readUnsignedByte();
+		byte[] hash = null;
+		int length = -1;
+		List<String> parents = null;
+		boolean delta = false;
+		String codec = null;
+		Map<String, Section> sections = null;
+		if (version != VERSION_1) {
+			length = dis.readInt();
+			hash = new byte[dis.readUnsignedByte()];
+			dis.readFully(hash);
+		}
+		if (version >= VERSION_4) {
+			int flags = dis.readUnsignedByte();
+			delta = (flags & FLAG_DELTA) != 0;
+			parents = readParents(dis);
+			if (version == VERSION) {
+				codec = dis.readUTF();
+			}
+			if ((flags & FLAG_SECTIONED) != 0) {
+				sections = readSections(dis);
+			}
+		} else if (version == VERSION_3) {
+			// Version 3 only recorded the parent of delta payloads
+			List<String> parent = readParents(dis);
+			if (!parent.isEmpty()) {
+				parents = parent;
+				delta = true;
+			}
+		}
+		switch (encoding) {
+			case ENCODING_RAW:
+				return new MergePayload(hash, length, parents, delta, codec, pis, encoding, sections);
+			case ENCODING_DEFLATE:
+				// Sections are compressed one by one, and are inflated when they're opened
+				InputStream body = (sections != null) ? pis : new InflaterInputStream(pis);
+				return new MergePayload(hash, length, parents, delta, codec, body, encoding, sections);
+			default:
+				throw new IOException("Unsupported merge payload encoding " + encoding);
+		}
+	}
+
+	private static Map<String, Section> readSections(DataInputStream dis) throws IOException {
+		int count = dis.readInt();
+		Map<String, Section> sections = new LinkedHashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			sections.put(dis.readUTF(), new Section(dis.readInt(), dis.readInt()));
+		}
+		return sections;
+	}
+
+	/**
+	 * @return The id {@link #codec} is compared against, i.e the class name of the provided codec.
+	 */
+	static String getCodecId(MergeCodec<?> codec) {
+		return codec.getClass().getName();
+	}
+
+	/**
+	 * Makes sure the payload is decoded by the same codec that encoded it. Payloads without a
+	 * codec id are decoded by any codec, as before.
+	 * @throws IOException If the payload was encoded by a different codec.
+	 */
+	void checkCodec(MergeCodec<?> codec) throws IOException {
+		if (this.codec != null && !this.codec.equals(getCodecId(codec))) {
+			throw new IOException("Merge payload was encoded with " + this.codec + ", not "
+					+ getCodecId(codec) + ", all modules must use the same codec");
+		}
+	}
+
+	boolean isSectioned() {
+		return sections != null;
+	}
+
+	/**
+	 * @return Keys of the sections of this payload, in the order they were written.
+	 */
+	Set<String> getSectionKeys() {
+		return sections.keySet();
+	}
+
+	/**
+	 * Reads all the encoded sections into memory, without decompressing or decoding any of them,
+	 * so that {@link #body} can be closed.
+	 */
+	synchronized void loadSections() throws IOException {
+		if (sectionData != null) {
+			return;
+		}
+		int size = 0;
+		for (Section section : sections.values()) {
+			size = Math.max(size, section.offset + section.length);
+		}
+		sectionData = new byte[size];
+		new DataInputStream(body).readFully(sectionData);
+	}
+
+	/**
+	 * Reads the encoded sections on first use, and returns the stream of the provided one, without
+	 * decompressing or decoding any other section.
+	 * @return Stream of the decoded section, or null if there's no section with the provided key.
+	 */
+	synchronized InputStream openSection(String key) throws IOException {
+		Section section = sections.get(key);
+		if (section == null) {
+			return null;
+		}
+		loadSections();
+		InputStream in = new ByteArrayInputStream(sectionData, section.offset, section.length);
+		return (encoding == ENCODING_DEFLATE) ? new InflaterInputStream(in) : in;
+	}
+
+	private static List<String> readParents(DataInputStream dis) throws IOException {
+		String parents = dis.readUTF();
+		if (parents.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(parents.split(PARENT_SEPARATOR));
+	}
+
+	/**
+	 * @return Hash of the provided byte arrays, as if they were one.
+	 */
+	static byte[] hash(byte[]... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			for (byte[] part : parts) {
+				digest.update(part);
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every JVM is required to support SHA-256
+		}
+	}
+
+	/**
+	 * Position of a single section among the encoded sections of a payload.
+	 */
+	private static final class Section {
+
+		final int offset;
+		final int length;
+
+		Section(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
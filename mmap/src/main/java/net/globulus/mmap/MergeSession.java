@@ -2,84 +2,800 @@ package net.globulus.mmap;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.lang.model.element.Element;
 
 public final class MergeSession<T extends MergeInput> {
 
     private final MergeManager<T> manager;
+    private int upstreamGeneration = -1;
+    private List<String> upstreamIds = Collections.emptyList();
+    private List<String> mergeIds;
+    private List<UpstreamMerge<T>> upstreamMerges;
+
+    private T localInput;
+    private T mergeResult;
+
+    private MergeCache cache;
+    private byte[] upstreamHash;
+    private byte[] localHash;
+    private T mergedInput;
+    private byte[] mergedPayload;
+
+    private CompletableFuture<T> prefetch;
+    private List<MergePayload> prefetchedMerges;
+    private Map<String, MergePayload> prefetchedPayloads;
+    private T encodingInput;
+    private CompletableFuture<byte[]> encoding;
 
     MergeSession(MergeManager<T> m) {
         manager = m;
     }
 
+    /**
+     * Same as {@link #prefetchAsync(Class)}, but can't find the codec generated for your input,
+     * so use it only if you've set one via {@link MergeManager#setCodec(MergeCodec)}, or rely on
+     * Java serialization.
+     */
+    public CompletableFuture<T> prefetchAsync() {
+        return prefetchAsync(null);
+    }
+
+    /**
+     * Starts reading, decoding and merging the upstream input in the background, so that your
+     * processor can scan its round elements in the meantime. Call it right after the session is
+     * created. Merge files are listed before this returns, as that may go through
+     * {@link MergeManager#elements}, which can only be used from the processing thread.
+     * {@link #mergeInput(MergeInput)} then waits for the prefetch and merges its result with your
+     * input. Decoding and {@link MergeInput#mergedUp(MergeInput)} run on
+     * {@link MergeManager#executor}, and messages logged in the meantime are passed on to
+     * {@link MergeManager#processorLog} once mergeInput is called. If
+     * {@link MergeManager#cacheDir} holds a merge of the same upstream payloads, they aren't
+     * decoded, as the cached merge is likely to be reused.
+     * @param inputClass Class of your input, used to find the codec generated for it.
+     * @return Future of the upstream input, which completes with null if there's none, or if it's
+     * left to mergeInput because of a cached merge.
+     */
+    public synchronized CompletableFuture<T> prefetchAsync(Class<?> inputClass) {
+        if (prefetch != null) {
+            return prefetch;
+        }
+        if (!manager.resolver.shouldMerge()) {
+            prefetch = CompletableFuture.completedFuture(null);
+            return prefetch;
+        }
+        MergeCodec<T> codec = manager.getCodec(inputClass);
+        Map<String, MergeStore> ids;
+        try {
+            ids = findUpstreamIds();
+        } catch (IOException e) {
+            prefetch = new CompletableFuture<>();
+            prefetch.completeExceptionally(e);
+            return prefetch;
+        }
+        Map<String, MergePayload> payloads = new HashMap<>();
+        prefetch = CompletableFuture.supplyAsync(() -> {
+            try {
+                List<MergePayload> merges = findUpstreamMerges(ids, payloads);
+                prefetchedMerges = merges;
+                if (!merges.isEmpty() && hasCachedMerge(codec, merges)) {
+                    prefetchedPayloads = payloads; // Left open for mergeInput, in case the local input changed
+                    return Collections.<MergePayload>emptyList();
+                }
+                return merges;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, manager.executor).thenCompose(merges -> merges.isEmpty()
+                ? CompletableFuture.<T>completedFuture(null)
+                : reduceAsync(codec, merges)
+        ).whenComplete((upstream, e) -> {
+            if (prefetchedPayloads == null) {
+                closePayloads(payloads);
+            }
+        });
+        return prefetch;
+    }
+
     @SuppressWarnings("unchecked")
     public T mergeInput(T input) {
+        localInput = input;
         if (manager.resolver.shouldMerge()) {
-            ByteBuffer buffer = ByteBuffer.allocate(50_000);
-            // Find first merge file
-            manager.processorLog.warn(null, "Finding first merge file");
-            List<Class> mergeClasses = new ArrayList<>();
-            for (int i = 0; i < manager.lookbackPeriod; i++) {
-                long index = manager.timestamp - i;
-                try {
-                    Class lastMergeClass = Class.forName(getClassNameForIndex(index));
-                    manager.processorLog.warn(null, "Found merge class at " + index);
-                    mergeClasses.add(lastMergeClass);
-
-                    // If exception wasn't thrown, we've found the last written merge file
-                    for (long j = index - 1; j > manager.timestamp - manager.lookbackPeriod; j--) {
-                        try {
-                            Class mergeClass = Class.forName(getClassNameForIndex(j));
-                            mergeClasses.add(mergeClass);
-                        } catch (ClassNotFoundException e) {
-                            break; // Break as we don't have classes beyond this point
-                        }
+            Map<String, MergePayload> payloads = new HashMap<>();
+            try {
+                T upstream = null;
+                List<MergePayload> merges;
+                if (prefetch != null) {
+                    upstream = joinPrefetch();
+                    merges = prefetchedMerges;
+                    if (prefetchedPayloads != null) {
+                        payloads.putAll(prefetchedPayloads);
                     }
+                } else {
+                    merges = findUpstreamMerges(findUpstreamIds(), payloads);
+                }
+                if (merges.isEmpty()) {
+                    manager.processorLog.warn(null, "No merge files found, nothing to merge.");
+                    mergeResult = input;
+                    return input;
+                }
+                T cached = readCachedMerge(merges, input);
+                if (cached != null) {
+                    mergeResult = cached;
+                    return cached;
+                }
+                if (upstream == null) {
+                    upstream = reduce(manager.getCodec(input), merges);
+                }
+                input = (T) input.mergedUp(upstream);
+                cacheMerge(input);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closePayloads(payloads);
+                manager.processorLog.flush();
+            }
+        }
+        mergeResult = input;
+        return input;
+    }
+
+    /**
+     * Waits for the prefetch started by {@link #prefetchAsync(Class)}.
+     * @return The prefetched upstream input.
+     */
+    private T joinPrefetch() throws IOException {
+        try {
+            return prefetch.join();
+        } catch (CompletionException | CancellationException e) {
+            throw new IOException("Unable to prefetch upstream merges", e.getCause());
+        } finally {
+            manager.processorLog.flush();
+        }
+    }
+
+    private static void closePayloads(Map<String, MergePayload> payloads) {
+        for (MergePayload payload : payloads.values()) {
+            try {
+                payload.body.close();
+            } catch (IOException ignored) { }
+        }
+    }
 
-                    manager.processorLog.warn(null, "Found a total of "
-                            + mergeClasses.size() + " merge classes in this run.");
-                    break; // break if something was found
-                } catch (ClassNotFoundException ignored) { }
-            }
-            for (int i = mergeClasses.size() - 1; i >= 0; i--) {
-                Class mergeClass = mergeClasses.get(i);
-                try {
-                    buffer.put((byte[]) mergeClass.getField(MergeFileCodeGen.MERGE_FIELD_NAME).get(null));
-                    if (!mergeClass.getField(MergeFileCodeGen.NEXT_FIELD_NAME).getBoolean(null)) {
-                        break;
+    /**
+     * Starts encoding the provided input for merge files in the background, so that only the
+     * {@link javax.annotation.processing.Filer} calls are left for
+     * {@link #writeMergeFiles(MergeInput, Element...)}, which has to be called with the same input
+     * and waits for the encoding to finish. Encoding runs on {@link MergeManager#executor}, so the
+     * input mustn't change until it's written.
+     * @return Future that completes once the input is encoded.
+     */
+    public synchronized CompletableFuture<Void> encodeAsync(T input) {
+        manager.getCodec(input); // Resolve the codec on the processing thread
+        encodingInput = input;
+        encoding = CompletableFuture.supplyAsync(() -> {
+            try {
+                return encode(input);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, manager.executor);
+        return encoding.thenApply(payload -> null);
+    }
+
+    public void writeMergeFiles(T input) {
+        writeMergeFiles(input, new Element[0]);
+    }
+
+    /**
+     * Writes the provided input to new merge files. If {@link MergeManager#writingDeltas} is set
+     * and the provided input is the one returned by {@link #mergeInput(MergeInput)}, only the input
+     * that was passed to it is written, along with a reference to the upstream merge files.
+     * @param originatingElements Elements the input was created from. Pass them if your processor
+     *                            is registered as an aggregating incremental processor with Gradle.
+     *                            See {@link MergeManager#getOriginatingElements(Set, javax.annotation.processing.RoundEnvironment)}.
+     */
+    public void writeMergeFiles(T input, Element... originatingElements) {
+        byte[] payload;
+        try {
+            if (encoding != null && input == encodingInput) {
+                payload = encoding.join();
+            } else {
+                payload = encode(input);
+            }
+        } catch (IOException | CompletionException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            manager.processorLog.flush();
+        }
+        int generation = upstreamGeneration + 1;
+        String mergeId = MergeFileCodeGen.getMergeId(manager.moduleId, generation);
+        try {
+            manager.getWriteStore().write(manager.processorName, mergeId, generation, payload, originatingElements);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encodes the provided input for merge files, see {@link #writeMergeFiles(MergeInput, Element...)}.
+     */
+    private byte[] encode(T input) throws IOException {
+        if (manager.writingDeltas && input == mergeResult) {
+            return writePayload(localInput, true);
+        } else if (input == mergedInput && mergedPayload != null) {
+            return mergedPayload; // Already encoded when the merge was cached
+        } else {
+            return writePayload(input, false);
+        }
+    }
+
+    /**
+     * Reads a single section of the upstream input, without decoding the other sections of
+     * sectioned merge files. Use it instead of {@link #mergeInput(MergeInput)} if the current module
+     * only needs a part of the upstream input, which has to be a {@link SectionedMergeInput}.
+     * Merge files are found on the first call, and their sections are decoded as they're read.
+     * @return Merge of the upstream sections with the provided key, or null if there are none.
+     */
+    public T readSection(String key) {
+        return readSection(key, (localInput != null) ? localInput.getClass() : null);
+    }
+
+    /**
+     * Same as {@link #readSection(String)}, but finds the codec generated for the provided input
+     * class. Use it if no input was passed to {@link #mergeInput(MergeInput)}.
+     */
+    public T readSection(String key, Class<?> inputClass) {
+        if (!manager.resolver.shouldMerge()) {
+            return null;
+        }
+        try {
+            MergeCodec<T> codec = manager.getCodec(inputClass);
+            if (prefetch != null) {
+                joinPrefetch(); // Upstream merges are found by the prefetch, and aren't thread-safe
+            }
+            if (upstreamMerges == null) {
+                upstreamMerges = loadUpstreamMerges(codec);
+            }
+            List<Part<T>> parts = new ArrayList<>();
+            for (UpstreamMerge<T> merge : upstreamMerges) {
+                if (merge.input != null) {
+                    T section = getSections(merge.input).get(key);
+                    if (section != null) {
+                        parts.add(() -> section);
                     }
-                } catch (IllegalAccessException | NoSuchFieldException e) {
-                    e.printStackTrace();
+                } else if (merge.payload.getSectionKeys().contains(key)) {
+                    parts.add(() -> decodeSection(codec, merge.payload, key));
+                }
+            }
+            return parts.isEmpty() ? null : reduce(parts);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            manager.processorLog.flush();
+        }
+    }
+
+    /**
+     * Finds the upstream merge files and loads their sections, decoding only the payloads that
+     * aren't sectioned, so that their streams can be closed.
+     */
+    private List<UpstreamMerge<T>> loadUpstreamMerges(MergeCodec<T> codec) throws IOException {
+        Map<String, MergePayload> payloads = new HashMap<>();
+        try {
+            List<UpstreamMerge<T>> merges = new ArrayList<>();
+            for (MergePayload payload : findUpstreamMerges(findUpstreamIds(), payloads)) {
+                if (payload.isSectioned()) {
+                    payload.loadSections();
+                    merges.add(new UpstreamMerge<>(payload, null));
+                } else {
+                    merges.add(new UpstreamMerge<>(null, decodeCached(codec, payload)));
+                }
+            }
+            return merges;
+        } finally {
+            closePayloads(payloads);
+        }
+    }
+
+    /**
+     * Encodes the provided input for merge files, a section at a time if it's a
+     * {@link SectionedMergeInput} with sections.
+     */
+    private byte[] writePayload(T input, boolean delta) throws IOException {
+        MergeCodec<T> codec = manager.getCodec(input);
+        Map<String, T> sections = getSections(input);
+        if (!sections.isEmpty()) {
+            return MergePayload.writeSections(codec, sections, manager.compressionLevel, upstreamIds, delta);
+        }
+        return MergePayload.write(codec, input, manager.compressionLevel, upstreamIds, delta);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, T> getSections(T input) {
+        if (input instanceof SectionedMergeInput) {
+            return ((SectionedMergeInput) input).getSections();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Finds all the upstream merge files visible to the current module, along with their ancestors,
+     * and picks the ones that have to be merged. Complete payloads already include their ancestors,
+     * so those are skipped, and ancestors shared by several payloads are only merged once.
+     * @param ids Merge ids found by {@link #findUpstreamIds()}.
+     * @param payloads Filled with all the payloads that were opened, by merge id.
+     * @return Payloads to merge, oldest first.
+     */
+    private List<MergePayload> findUpstreamMerges(Map<String, MergeStore> ids, Map<String, MergePayload> payloads)
+            throws IOException {
+        if (ids.isEmpty()) {
+            InputStream is = new ClassMergeStore(manager).readLegacy(manager.processorName);
+            if (is == null) {
+                return Collections.emptyList();
+            }
+            MergePayload payload = MergePayload.read(is);
+            payloads.put("", payload);
+            mergeIds = Collections.emptyList();
+            return Collections.singletonList(payload);
+        }
+        Deque<String> pending = new ArrayDeque<>(ids.keySet());
+        Set<String> missing = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (payloads.containsKey(id) || missing.contains(id) || isOwnMerge(id)) {
+                continue; // This module's own merges are never read, see excludeOwnDescendants
+            }
+            InputStream is = openMerge(id, ids);
+            if (is == null) {
+                missing.add(id); // Not on the classpath, which is fine unless a delta needs it
+                continue;
+            }
+            MergePayload payload = MergePayload.read(is);
+            payloads.put(id, payload);
+            if (payload.parents != null) {
+                pending.addAll(payload.parents);
+            }
+        }
+        excludeOwnDescendants(payloads);
+
+        Set<String> ancestors = new HashSet<>();
+        Set<String> covered = new HashSet<>();
+        for (Map.Entry<String, MergePayload> entry : payloads.entrySet()) {
+            addAncestors(entry.getKey(), payloads, ancestors);
+            if (!entry.getValue().delta) {
+                addAncestors(entry.getKey(), payloads, covered);
+            }
+        }
+        List<String> mergeIds = new ArrayList<>();
+        upstreamIds = new ArrayList<>();
+        int completeCount = 0;
+        for (Map.Entry<String, MergePayload> entry : payloads.entrySet()) {
+            String id = entry.getKey();
+            MergePayload payload = entry.getValue();
+            upstreamGeneration = Math.max(upstreamGeneration, MergeFileCodeGen.getGeneration(id));
+            if (!ancestors.contains(id)) {
+                upstreamIds.add(id);
+            }
+            if (covered.contains(id)) {
+                continue;
+            }
+            mergeIds.add(id);
+            if (payload.delta) {
+                for (String parent : payload.parents) {
+                    if (!payloads.containsKey(parent)) {
+                        throw new IOException("Unable to find parent merge " + parent + " of " + id);
+                    }
+                }
+            } else if (payload.parents == null || !payload.parents.isEmpty()) {
+                completeCount++;
+            }
+        }
+        if (completeCount > 1) {
+            manager.processorLog.warn(null, "Merging " + completeCount + " complete merges that may share "
+                    + "ancestors, use MergeManager#setWritingDeltas to merge each of them only once.");
+        }
+        Collections.sort(upstreamIds);
+
+        // A merge's generation is always higher than its parents', which makes it a topological order
+        mergeIds.sort(Comparator.comparingInt(MergeFileCodeGen::getGeneration)
+                .thenComparing(Comparator.naturalOrder()));
+        manager.processorLog.warn(null, "Merging upstream merges " + mergeIds);
+        List<MergePayload> merges = new ArrayList<>();
+        for (String id : mergeIds) {
+            merges.add(payloads.get(id));
+        }
+        mergeIds.addAll(0, upstreamIds); // Cached merges are only valid for the same upstream ids
+        this.mergeIds = mergeIds;
+        return merges;
+    }
+
+    /**
+     * Drops the payloads that descend from merges of the current module. Stores shared by all the
+     * modules of a project, like {@link FileMergeStore}, list the output of every module, so when
+     * a module is rebuilt, they list its own previous output, which is never read, as well as the
+     * output of downstream modules, which already includes it. Merges can only be told apart by
+     * module if {@link MergeManager#moduleId} is set.
+     */
+    private void excludeOwnDescendants(Map<String, MergePayload> payloads) {
+        if (manager.moduleId == null) {
+            return;
+        }
+        List<String> excluded = new ArrayList<>();
+        for (String id : payloads.keySet()) {
+            Set<String> lineage = new HashSet<>();
+            addAncestors(id, payloads, lineage);
+            lineage.add(id);
+            for (String ancestor : lineage) {
+                if (isOwnMerge(ancestor)) {
+                    excluded.add(id);
+                    break;
+                }
+            }
+        }
+        if (excluded.isEmpty()) {
+            return;
+        }
+        manager.processorLog.warn(null, "Skipping merges of this module's dependents " + excluded);
+        for (String id : excluded) {
+            try {
+                payloads.remove(id).body.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * @return true if the merge with the provided id was written by the current module.
+     */
+    private boolean isOwnMerge(String id) {
+        return manager.moduleId != null && manager.moduleId.equals(MergeFileCodeGen.getModuleId(id));
+    }
+
+    /**
+     * Adds all the ancestors of the provided merge to the provided set. Merges without parents in
+     * their header are assumed to include all the merges of lower generations.
+     */
+    private static void addAncestors(String id, Map<String, MergePayload> payloads, Set<String> ancestors) {
+        MergePayload payload = payloads.get(id);
+        if (payload == null) {
+            return;
+        }
+        if (payload.parents == null) {
+            int generation = MergeFileCodeGen.getGeneration(id);
+            for (String other : payloads.keySet()) {
+                if (MergeFileCodeGen.getGeneration(other) < generation) {
+                    ancestors.add(other);
                 }
             }
+            return;
+        }
+        for (String parent : payload.parents) {
+            if (ancestors.add(parent)) {
+                addAncestors(parent, payloads, ancestors);
+            }
+        }
+    }
+
+    /**
+     * Decodes the provided payloads and merges each one up with the ones before it.
+     * @param merges Payloads to merge, oldest first.
+     */
+    private T reduce(MergeCodec<T> codec, List<MergePayload> merges) throws IOException {
+        if (manager.mergeAssociative) {
+            return join(reduceAsync(codec, merges));
+        }
+        List<Part<T>> parts = new ArrayList<>(merges.size());
+        for (MergePayload payload : merges) {
+            parts.add(() -> decodeCached(codec, payload));
+        }
+        return reduce(parts);
+    }
+
+    /**
+     * Same as {@link #reduce(MergeCodec, List)}, but runs on {@link MergeManager#executor}. If
+     * {@link MergeManager#mergeAssociative} is set, payloads are decoded and merged in parallel,
+     * and so are the sections of sectioned payloads.
+     */
+    private CompletableFuture<T> reduceAsync(MergeCodec<T> codec, List<MergePayload> merges) {
+        if (!manager.mergeAssociative) {
+            return decodeAsync(() -> reduce(codec, merges));
+        }
+        List<CompletableFuture<T>> decoded = new ArrayList<>(merges.size());
+        for (MergePayload payload : merges) {
+            decoded.add(decodeCachedAsync(codec, payload));
+        }
+        return reduceAsync(decoded, 0, decoded.size());
+    }
+
+    /**
+     * Decodes the provided parts and merges each one up with the ones before it. If
+     * {@link MergeManager#mergeAssociative} is set, parts are decoded and merged in parallel.
+     * @param parts Parts to merge, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    private T reduce(List<Part<T>> parts) throws IOException {
+        if (manager.mergeAssociative && parts.size() > 1) {
+            List<CompletableFuture<T>> decoded = new ArrayList<>(parts.size());
+            for (Part<T> part : parts) {
+                decoded.add(decodeAsync(part));
+            }
+            return join(reduceAsync(decoded, 0, decoded.size()));
+        }
+        T merge = null;
+        for (Part<T> part : parts) {
+            T upstream = part.decode();
+            merge = (merge == null) ? upstream : (T) upstream.mergedUp(merge);
+        }
+        return merge;
+    }
+
+    /**
+     * Merges a range of decoded parts as a tree on {@link MergeManager#executor}, which relies on
+     * the merge being associative to produce the same result as merging them one by one. Merges
+     * are chained to the parts they depend on rather than waiting for them, so no executor thread
+     * is ever blocked.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<T> reduceAsync(List<CompletableFuture<T>> decoded, int from, int to) {
+        if (to - from == 1) {
+            return decoded.get(from);
+        }
+        int middle = (from + to) >>> 1;
+        return reduceAsync(decoded, middle, to).thenCombineAsync(reduceAsync(decoded, from, middle),
+                (newer, older) -> (T) newer.mergedUp(older), manager.executor);
+    }
+
+    private CompletableFuture<T> decodeAsync(Part<T> part) {
+        return CompletableFuture.supplyAsync(() -> {
             try {
-                T merge = fromBytes(buffer.array());
-                input = (T) input.mergedUp(merge);
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+                return part.decode();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }, manager.executor);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to decode merge", e.getCause());
         }
-        return input;
     }
 
-    public void writeMergeFiles(T input) {
-        new MergeFileCodeGen(manager.packageName, manager.processorName, manager.processorLog)
-                .generate(manager.filer, manager.timestamp, input);
+    /**
+     * Same as {@link #decodeCached(MergeCodec, MergePayload)}, but runs on
+     * {@link MergeManager#executor}, and decodes the sections of sectioned payloads in parallel.
+     */
+    private CompletableFuture<T> decodeCachedAsync(MergeCodec<T> codec, MergePayload payload) {
+        if (!payload.isSectioned()) {
+            return decodeAsync(() -> decodeCached(codec, payload));
+        }
+        T cached = getMemoryCached(codec, payload);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        List<CompletableFuture<T>> decoded = new ArrayList<>();
+        for (String key : payload.getSectionKeys()) {
+            decoded.add(decodeAsync(() -> decodeSection(codec, payload, key)));
+        }
+        return reduceAsync(decoded, 0, decoded.size()).thenApply(input -> {
+            putMemoryCached(codec, payload, input);
+            return input;
+        });
     }
 
-    private String getClassNameForIndex(long index) {
-        return manager.packageName + "." + MergeFileCodeGen.getClassName(manager.processorName, index);
+    /**
+     * Returns the input decoded from the same payload by a previous session in this JVM, if
+     * {@link MergeManager#memoryCachePayloadBytes} is set, or decodes it and caches it for later ones.
+     */
+    private T decodeCached(MergeCodec<T> codec, MergePayload payload) throws IOException {
+        T input = getMemoryCached(codec, payload);
+        if (input == null) {
+            input = decode(codec, payload);
+            putMemoryCached(codec, payload, input);
+        }
+        return input;
     }
 
     @SuppressWarnings("unchecked")
-    private T fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-             ObjectInput in = new ObjectInputStream(bis)) {
-            return (T) in.readObject();
+    private T getMemoryCached(MergeCodec<T> codec, MergePayload payload) {
+        if (manager.memoryCachePayloadBytes <= 0 || payload.hash == null) {
+            return null;
+        }
+        T input = (T) MergeMemoryCache.getInstance().get(manager.processorName, payload.hash, codec);
+        if (input != null) {
+            manager.processorLog.warn(null, "Found decoded merge in memory");
+        }
+        return input;
+    }
+
+    private void putMemoryCached(MergeCodec<T> codec, MergePayload payload, T input) {
+        if (manager.memoryCachePayloadBytes <= 0 || payload.hash == null) {
+            return;
+        }
+        MergeMemoryCache.getInstance().put(manager.processorName, payload.hash, codec, input, payload.length,
+                manager.memoryCachePayloadBytes);
+    }
+
+    /**
+     * Decodes the provided payload, merging its sections if it's sectioned.
+     */
+    private T decode(MergeCodec<T> codec, MergePayload payload) throws IOException {
+        if (!payload.isSectioned()) {
+            payload.checkCodec(codec);
+            return codec.decode(payload.body);
+        }
+        List<Part<T>> parts = new ArrayList<>();
+        for (String key : payload.getSectionKeys()) {
+            parts.add(() -> decodeSection(codec, payload, key));
+        }
+        return reduce(parts);
+    }
+
+    private static <T> T decodeSection(MergeCodec<T> codec, MergePayload payload, String key) throws IOException {
+        payload.checkCodec(codec);
+        try (InputStream in = payload.openSection(key)) {
+            return codec.decode(in);
+        }
+    }
+
+    /**
+     * If {@link MergeManager#cacheDir} is set, looks for a merge of the same upstream payloads and
+     * local input cached by a previous build.
+     * @param merges Upstream payloads returned by {@link #findUpstreamMerges(Map, Map)}.
+     * @return The cached merge, or null if there's none.
+     */
+    private T readCachedMerge(List<MergePayload> merges, T input) throws IOException {
+        if (manager.cacheDir == null) {
+            return null;
+        }
+        upstreamHash = hashUpstream(merges);
+        if (upstreamHash == null) {
+            return null;
+        }
+        MergeCodec<T> codec = manager.getCodec(input);
+        cache = new MergeCache(manager.cacheDir, manager.processorName, manager.processorLog);
+        localHash = MergePayload.hash(MergePayload.encode(codec, input));
+        byte[] cached = cache.get(upstreamHash, localHash, manager.compressionLevel,
+                MergePayload.getCodecId(codec));
+        if (cached == null) {
+            return null;
+        }
+        // Cached payloads are written by writePayload, so they're sectioned if the merge is
+        MergePayload payload = MergePayload.read(new ByteArrayInputStream(cached));
+        try {
+            mergedInput = decode(codec, payload);
+        } finally {
+            payload.body.close();
+        }
+        mergedPayload = cached;
+        return mergedInput;
+    }
+
+    /**
+     * Tells {@link #prefetchAsync(Class)} whether {@link MergeManager#cacheDir} holds a merge of the
+     * provided upstream payloads, with any local input.
+     */
+    private boolean hasCachedMerge(MergeCodec<T> codec, List<MergePayload> merges) {
+        if (manager.cacheDir == null) {
+            return false;
+        }
+        byte[] hash = hashUpstream(merges);
+        return hash != null && new MergeCache(manager.cacheDir, manager.processorName, manager.processorLog)
+                .containsUpstream(hash, manager.compressionLevel, MergePayload.getCodecId(codec));
+    }
+
+    /**
+     * @return Hash of the provided upstream payloads, or null if any of them doesn't have one.
+     */
+    private byte[] hashUpstream(List<MergePayload> merges) {
+        byte[][] hashes = new byte[merges.size() + 1][];
+        for (int i = 0; i < merges.size(); i++) {
+            hashes[i] = merges.get(i).hash;
+            if (hashes[i] == null) {
+                return null;
+            }
+        }
+        hashes[merges.size()] = String.valueOf(mergeIds).getBytes(StandardCharsets.UTF_8);
+        return MergePayload.hash(hashes);
+    }
+
+    /**
+     * Caches the merge of the upstream payloads and local input hashed by
+     * {@link #readCachedMerge(List, MergeInput)}, if any.
+     */
+    private void cacheMerge(T merge) throws IOException {
+        if (cache == null) {
+            return;
+        }
+        mergedPayload = writePayload(merge, false);
+        mergedInput = merge;
+        cache.put(upstreamHash, localHash, manager.compressionLevel,
+                MergePayload.getCodecId(manager.getCodec(merge)), mergedPayload);
+    }
+
+    /**
+     * Finds the merge ids of all the upstream merge files, in all the stores merge files are read
+     * from, see {@link MergeManager#getReadStores()}.
+     * @return Stores of the merge files found, by merge id.
+     */
+    private Map<String, MergeStore> findUpstreamIds() throws IOException {
+        Map<String, MergeStore> ids = new LinkedHashMap<>();
+        for (MergeStore store : manager.getReadStores()) {
+            for (String id : store.listMerges(manager.processorName)) {
+                if (isOwnMerge(id)) {
+                    continue; // Previous output of this module, see excludeOwnDescendants
+                }
+                if (!ids.containsKey(id)) {
+                    ids.put(id, store);
+                }
+            }
+        }
+        if (!ids.isEmpty()) {
+            manager.processorLog.warn(null, "Found merges " + ids.keySet());
+        }
+        return ids;
+    }
+
+    /**
+     * Finds the merge files with the provided merge id, in the store it was listed in, or in any of
+     * them if it wasn't listed.
+     * @return Stream of their payload, or null if there are none.
+     */
+    private InputStream openMerge(String mergeId, Map<String, MergeStore> stores) throws IOException {
+        MergeStore listedStore = stores.get(mergeId);
+        if (listedStore != null) {
+            return listedStore.read(manager.processorName, mergeId);
+        }
+        for (MergeStore store : manager.getReadStores()) {
+            InputStream is = store.read(manager.processorName, mergeId);
+            if (is != null) {
+                return is;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A payload, or a section of one, that's yet to be decoded.
+     */
+    private interface Part<T> {
+
+        T decode() throws IOException;
+    }
+
+    /**
+     * An upstream merge found by {@link #readSection(String)}, either a sectioned payload whose
+     * sections are loaded, or an input that was decoded as a whole.
+     */
+    private static final class UpstreamMerge<T> {
+
+        final MergePayload payload;
+        final T input;
+
+        UpstreamMerge(MergePayload payload, T input) {
+            this.payload = payload;
+            this.input = input;
         }
     }
 }
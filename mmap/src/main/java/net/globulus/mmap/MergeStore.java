@@ -0,0 +1,38 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+
+/**
+ * Defines where merge payloads are kept, and how they're found by downstream modules. Set a store
+ * on your {@link MergeManager} via {@link MergeManager#setStore(MergeStore)}. By default, payloads
+ * are written via {@link javax.annotation.processing.Filer} to merge classes, or to resources if
+ * {@link MergeManager#setWritingResources(boolean)} is set, and are read through the class loader.
+ * <p>Each payload is identified by its processor's name and a merge id, which tells the generation
+ * of the module that wrote it. Payloads are opaque to stores.</p>
+ */
+public interface MergeStore {
+
+    /**
+     * Lists the payloads of the provided processor that are visible to the current module.
+     * @return Merge ids of the payloads, in no particular order.
+     */
+    List<String> listMerges(String processorName) throws IOException;
+
+    /**
+     * @return Stream of the payload with the provided merge id, or null if this store doesn't have
+     * it. The stream is closed by the caller.
+     */
+    InputStream read(String processorName, String mergeId) throws IOException;
+
+    /**
+     * Stores the payload of the current module.
+     * @param generation Generation of the current module, which is also a part of the merge id.
+     * @param originatingElements Elements the payload was created from, for incremental processing.
+     */
+    void write(String processorName, String mergeId, int generation, byte[] payload,
+               Element... originatingElements) throws IOException;
+}
@@ -0,0 +1,69 @@
+package net.globulus.mmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the build configuration that keeps a processor's merge files out of shipped artifacts.
+ * Merge files are only needed while modules are compiled, but they're packaged along with the
+ * rest of the modules that wrote them, e.g into an APK. The sink module writes:
+ * <ul>
+ *     <li>A ProGuard / R8 configuration, which makes shrinking fail if any merge class is kept,
+ *     e.g by a keep rule for the whole merge package. Merge classes aren't referenced from code, so
+ *     shrinking removes them otherwise.</li>
+ *     <li>A list of packaging exclusion patterns, one per line, which match merge resources and
+ *     merge containers, as shrinking doesn't remove resources.</li>
+ * </ul>
+ */
+final class MergeStripRules {
+
+	private static final String RULES_FILE_NAME_FORMAT = "%s-mmap.pro";
+	private static final String EXCLUDES_FILE_NAME_FORMAT = "%s-mmap-excludes.txt";
+
+	private MergeStripRules() { }
+
+	static void write(MergeManager<?> manager, File dir) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			manager.processorLog.warn(null, "Unable to create strip rules dir " + dir);
+			return;
+		}
+		String processorName = manager.processorName;
+		String packagePrefix = manager.packageName + ".";
+		String packagePath = "/" + manager.packageName.replace('.', '/') + "/";
+		File rulesFile = new File(dir, String.format(RULES_FILE_NAME_FORMAT, processorName));
+		File excludesFile = new File(dir, String.format(EXCLUDES_FILE_NAME_FORMAT, processorName));
+		try (PrintWriter rules = open(rulesFile); PrintWriter excludes = open(excludesFile)) {
+			rules.println("# Merge classes of " + processorName + ", which are only needed at build time");
+			rules.println("-checkdiscard class " + packagePrefix
+					+ MergeFileCodeGen.getHeadClassName(processorName, "*"));
+			rules.println("-checkdiscard class " + packagePrefix
+					+ getClassPrefix(processorName) + "*");
+			excludes.println(packagePath + MergeFileCodeGen.getResourceName(processorName, "*"));
+			excludes.println("/" + MergeContainer.DIR + "/" + MergeContainer.PREFIX + "*" + MergeContainer.EXTENSION);
+			if (rules.checkError() || excludes.checkError()) {
+				throw new IOException("Unable to write strip rules");
+			}
+			manager.processorLog.warn(null, "Wrote strip rules to " + rulesFile + " and " + excludesFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			manager.processorLog.warn(null, "Unable to write strip rules to " + dir);
+		}
+	}
+
+	private static PrintWriter open(File file) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return Prefix shared by the names of all the merge classes of the processor, chunks and
+	 * legacy ones included.
+	 */
+	private static String getClassPrefix(String processorName) {
+		String prefix = MergeFileCodeGen.getClassName(processorName, 0);
+		return prefix.substring(0, prefix.length() - 1);
+	}
+}
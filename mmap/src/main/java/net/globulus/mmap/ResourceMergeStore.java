@@ -0,0 +1,76 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+
+/**
+ * A {@link MergeStore} that writes payloads to binary resources via
+ * {@link javax.annotation.processing.Filer}, and reads them through the class loader.
+ */
+final class ResourceMergeStore implements MergeStore {
+
+	private static final int MAX_GENERATION = 256;
+
+	private final MergeManager<?> manager;
+
+	ResourceMergeStore(MergeManager<?> manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Lists the merge resources across all the classpath directories and jars that contain
+	 * {@link MergeManager#packageName}, via the {@link MergeIndex} shared by the compilation, or
+	 * probes them by generation if they can't be listed.
+	 */
+	@Override
+	public List<String> listMerges(String processorName) {
+		List<String> ids = new ArrayList<>(MergeIndex.forCompilation(manager)
+				.getListing(manager.packageName, processorName, manager.processorLog).resourceIds);
+		if (ids.isEmpty()) {
+			String resourceId = probeResourceId(processorName);
+			if (resourceId != null) {
+				ids.add(resourceId);
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public InputStream read(String processorName, String mergeId) throws IOException {
+		URL resource = MergeStore.class.getClassLoader().getResource(getResourcePath(processorName, mergeId));
+		return (resource != null) ? resource.openStream() : null;
+	}
+
+	@Override
+	public void write(String processorName, String mergeId, int generation, byte[] payload,
+					  Element... originatingElements) {
+		new MergeFileCodeGen(manager.packageName, processorName, manager.processorLog)
+				.generateResource(manager.filer, mergeId, payload, originatingElements);
+	}
+
+	/**
+	 * Probes merge resources by generation, for when they can't be listed.
+	 * @return Merge id of the resource with the highest generation, or null if there are none.
+	 */
+	private String probeResourceId(String processorName) {
+		String resourceId = null;
+		for (int generation = 0; generation < MAX_GENERATION; generation++) {
+			String mergeId = MergeFileCodeGen.getMergeId(null, generation);
+			if (MergeStore.class.getClassLoader().getResource(getResourcePath(processorName, mergeId)) != null) {
+				resourceId = mergeId;
+			} else if (resourceId != null) {
+				break; // We've passed the last written resource
+			}
+		}
+		return resourceId;
+	}
+
+	private String getResourcePath(String processorName, String mergeId) {
+		return manager.packageName.replace('.', '/') + "/" + MergeFileCodeGen.getResourceName(processorName, mergeId);
+	}
+}
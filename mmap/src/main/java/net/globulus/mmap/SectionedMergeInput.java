@@ -0,0 +1,21 @@
+package net.globulus.mmap;
+
+import java.util.Map;
+
+/**
+ * A {@link MergeInput} that's made of independent, named sections, e.g one per flavor. Sectioned
+ * inputs are written to merge files one section at a time, along with an index, so that downstream
+ * modules can read a single section via {@link MergeSession#readSection(String)} without decoding
+ * the rest of the input.
+ * @param <T> The class that's implementing the interface.
+ */
+public interface SectionedMergeInput<T extends SectionedMergeInput<T>> extends MergeInput<T> {
+
+    /**
+     * Splits this input into sections, each of which is an input on its own. Sections must not
+     * overlap, so that {@link MergeInput#mergedUp(MergeInput) merging} all of them, in order, gives
+     * this input back.
+     * @return Sections by key, or an empty map to write this input as a whole.
+     */
+    Map<String, T> getSections();
+}
@@ -0,0 +1,30 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The default {@link MergeCodec}, which uses Java serialization.
+ */
+final class SerializableMergeCodec<T> implements MergeCodec<T> {
+
+	@Override
+	public void encode(T input, OutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(input);
+		oos.flush();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T decode(InputStream in) throws IOException {
+		try {
+			return (T) new ObjectInputStream(in).readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.globulus.mmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+
+/**
+ * A {@link MergeStore} that adds payloads to the {@link MergeContainer} shared by all the processors
+ * of a compilation, which is written once, by {@link MergeManager#writeSharedContainer()}, and
+ * reads them from the containers found on the classpath.
+ */
+final class SharedMergeStore implements MergeStore {
+
+	private final MergeManager<?> manager;
+
+	SharedMergeStore(MergeManager<?> manager) {
+		this.manager = manager;
+	}
+
+	@Override
+	public List<String> listMerges(String processorName) {
+		List<String> ids = new ArrayList<>();
+		for (MergeContainer container : getContainers()) {
+			ids.addAll(container.listMerges(processorName));
+		}
+		return ids;
+	}
+
+	@Override
+	public InputStream read(String processorName, String mergeId) throws IOException {
+		for (MergeContainer container : getContainers()) {
+			InputStream is = container.read(processorName, mergeId);
+			if (is != null) {
+				return is;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the payload to the shared container. If the container has already been written, the
+	 * payload is written on its own instead, as a merge resource or merge classes.
+	 */
+	@Override
+	public void write(String processorName, String mergeId, int generation, byte[] payload,
+					  Element... originatingElements) throws IOException {
+		if (!MergeIndex.forCompilation(manager).getContainerWriter()
+				.add(processorName, mergeId, payload, originatingElements)) {
+			manager.processorLog.warn(null, "Merge container already written, writing "
+					+ processorName + " merge files separately");
+			MergeStore store = manager.writingResources ? new ResourceMergeStore(manager) : new ClassMergeStore(manager);
+			store.write(processorName, mergeId, generation, payload, originatingElements);
+		}
+	}
+
+	private List<MergeContainer> getContainers() {
+		return MergeIndex.forCompilation(manager).getContainers(manager.processorLog);
+	}
+}
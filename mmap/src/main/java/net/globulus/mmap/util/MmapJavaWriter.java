@@ -11,6 +11,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.EnumSet;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -18,21 +21,33 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.lang.model.element.Modifier;
 
 import static javax.lang.model.element.Modifier.ABSTRACT;
 
-/** A utility class which aids in generating Java source files. */
+/**
+ * A utility class which aids in generating Java source files. Compressed types are cached, and
+ * statements are formatted into a reused buffer, so emitting doesn't allocate much beyond the
+ * output itself.
+ */
 public class MmapJavaWriter implements Closeable {
-  private static final Pattern TYPE_PATTERN = Pattern.compile("(?:[\\w$]+\\.)*([\\w\\.*$]+)");
   private static final int MAX_SINGLE_LINE_ATTRIBUTES = 3;
   private static final String INDENT = "  ";
+  private static final String[] MODIFIER_NAMES = new String[Modifier.values().length];
+
+  static {
+    for (Modifier modifier : Modifier.values()) {
+      MODIFIER_NAMES[modifier.ordinal()] = modifier.toString();
+    }
+  }
 
   /** Map fully qualified type names to their short names. */
   private final Map<String, String> importedTypes = new LinkedHashMap<String, String>();
+  /** The short names of {@link #importedTypes}, for telling if a short name is ambiguous. */
+  private final Set<String> importedSimpleNames = new HashSet<String>();
+  /** Map types to their compressed forms, for as long as imports don't change. */
+  private final Map<String, String> compressedTypes = new HashMap<String, String>();
 
   private String packagePrefix;
   private final Deque<Scope> scopes = new ArrayDeque<Scope>();
@@ -40,6 +55,12 @@ public class MmapJavaWriter implements Closeable {
   private final Writer out;
   private boolean isCompressingTypes = true;
   private String indent = INDENT;
+  /** Writes formatted code to {@link #out}, indenting the lines after the first one. */
+  private final HangingIndentWriter hangingOut = new HangingIndentWriter();
+  /** Holds the last formatted pattern, see {@link #format(String, Object...)}. */
+  private final StringBuilder formatted = new StringBuilder();
+  private Formatter formatter;
+  private char[] formattedChars = new char[0];
 
   /**
    * @param out the stream to which Java source will be written. This should be a buffered stream.
@@ -106,13 +127,7 @@ public class MmapJavaWriter implements Closeable {
    */
   public MmapJavaWriter emitImports(Collection<String> types) throws IOException {
     for (String type : new TreeSet<String>(types)) {
-      Matcher matcher = TYPE_PATTERN.matcher(type);
-      if (!matcher.matches()) {
-        throw new IllegalArgumentException(type);
-      }
-      if (importedTypes.put(type, matcher.group(1)) != null) {
-        throw new IllegalArgumentException(type);
-      }
+      addImport(type);
       out.write("import ");
       out.write(type);
       out.write(";\n");
@@ -134,13 +149,7 @@ public class MmapJavaWriter implements Closeable {
    */
   public MmapJavaWriter emitStaticImports(Collection<String> types) throws IOException {
     for (String type : new TreeSet<String>(types)) {
-      Matcher matcher = TYPE_PATTERN.matcher(type);
-      if (!matcher.matches()) {
-        throw new IllegalArgumentException(type);
-      }
-      if (importedTypes.put(type, matcher.group(1)) != null) {
-        throw new IllegalArgumentException(type);
-      }
+      addImport(type);
       out.write("import static ");
       out.write(type);
       out.write(";\n");
@@ -148,6 +157,55 @@ public class MmapJavaWriter implements Closeable {
     return this;
   }
 
+  private void addImport(String type) {
+    String simpleName = simpleName(type);
+    if (simpleName == null) {
+      throw new IllegalArgumentException(type);
+    }
+    if (importedTypes.put(type, simpleName) != null) {
+      throw new IllegalArgumentException(type);
+    }
+    importedSimpleNames.add(simpleName);
+    compressedTypes.clear();
+  }
+
+  /**
+   * Returns the part of {@code type} after its last package or class separator, or null if
+   * {@code type} isn't made of Java identifiers, dots and wildcards only.
+   */
+  private static String simpleName(String type) {
+    if (type.isEmpty()) {
+      return null;
+    }
+    for (int i = 0; i < type.length(); i++) {
+      if (!isTypeChar(type.charAt(i))) {
+        return null;
+      }
+    }
+    // Skip leading "name." segments, as long as something is left after them
+    int start = 0;
+    while (true) {
+      int end = start;
+      while (end < type.length() && isIdentifierChar(type.charAt(end))) {
+        end++;
+      }
+      if (end == start || end + 1 >= type.length() || type.charAt(end) != '.') {
+        return type.substring(start);
+      }
+      start = end + 1;
+    }
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'
+        || c == '$';
+  }
+
+  /** Returns true if {@code c} can be a part of a type name, like "java.util.*". */
+  private static boolean isTypeChar(char c) {
+    return isIdentifierChar(c) || c == '.' || c == '*';
+  }
+
   /**
    * Emits a name like {@code java.lang.String} or {@code java.util.List<java.lang.String>},
    * compressing it with imports if possible. Type compression will only be enabled if
@@ -164,26 +222,39 @@ public class MmapJavaWriter implements Closeable {
 
   /** Try to compress a fully-qualified class name to only the class name. */
   public String compressType(String type) {
-    StringBuilder sb = new StringBuilder();
     if (this.packagePrefix == null) {
       throw new IllegalStateException();
     }
+    String compressed = compressedTypes.get(type);
+    if (compressed == null) {
+      compressed = compressTypeUncached(type);
+      compressedTypes.put(type, compressed);
+    }
+    return compressed;
+  }
 
-    Matcher m = TYPE_PATTERN.matcher(type);
+  private String compressTypeUncached(String type) {
+    StringBuilder sb = new StringBuilder(type.length());
     int pos = 0;
-    while (true) {
-      boolean found = m.find(pos);
-
-      // Copy non-matching characters like "<".
-      int typeStart = found ? m.start() : type.length();
-      sb.append(type, pos, typeStart);
-
-      if (!found) {
+    int length = type.length();
+    while (pos < length) {
+      // Copy non-type characters like "<".
+      int start = pos;
+      while (start < length && !isTypeChar(type.charAt(start))) {
+        start++;
+      }
+      sb.append(type, pos, start);
+      if (start == length) {
         break;
       }
+      int end = start + 1;
+      while (end < length && isTypeChar(type.charAt(end))) {
+        end++;
+      }
+      pos = end;
 
       // Copy a single class name, shortening it if possible.
-      String name = m.group(0);
+      String name = type.substring(start, end);
       String imported = importedTypes.get(name);
       if (imported != null) {
         sb.append(imported);
@@ -199,9 +270,8 @@ public class MmapJavaWriter implements Closeable {
       } else {
         sb.append(name);
       }
-      pos = m.end();
     }
-    return sb.toString();
+    return type.contentEquals(sb) ? type : sb.toString();
   }
 
   private static boolean isClassInPackage(String name, String packagePrefix) {
@@ -223,7 +293,7 @@ public class MmapJavaWriter implements Closeable {
    * @param compressed simple name of the type
    */
   private boolean isAmbiguous(String compressed) {
-    return importedTypes.values().contains(compressed);
+    return importedSimpleNames.contains(compressed);
   }
 
   /**
@@ -339,13 +409,7 @@ public class MmapJavaWriter implements Closeable {
         out.write(" ");
       }
 
-      String[] lines = initialValue.split("\n", -1);
-      out.write(lines[0]);
-      for (int i = 1; i < lines.length; i++) {
-        out.write("\n");
-        hangingIndent();
-        out.write(lines[i]);
-      }
+      hangingOut.write(initialValue);
     }
     out.write(";\n");
     return this;
@@ -440,7 +504,8 @@ public class MmapJavaWriter implements Closeable {
 
   /** Emits some Javadoc comments with line separated by {@code \n}. */
   public MmapJavaWriter emitJavadoc(String javadoc, Object... params) throws IOException {
-    String formatted = String.format(javadoc, params);
+    String formatted = (params.length == 0 && javadoc.indexOf('%') == -1)
+        ? javadoc : String.format(javadoc, params);
 
     indent();
     out.write("/**\n");
@@ -460,9 +525,10 @@ public class MmapJavaWriter implements Closeable {
 
   /** Emits a single line comment. */
   public MmapJavaWriter emitSingleLineComment(String comment, Object... args) throws IOException {
+    format(comment, args);
     indent();
     out.write("// ");
-    out.write(String.format(comment, args));
+    writeFormatted(out);
     out.write("\n");
     return this;
   }
@@ -654,14 +720,9 @@ public class MmapJavaWriter implements Closeable {
    */
   public MmapJavaWriter emitStatement(String pattern, Object... args) throws IOException {
     checkInMethod();
-    String[] lines = String.format(pattern, args).split("\n", -1);
+    format(pattern, args);
     indent();
-    out.write(lines[0]);
-    for (int i = 1; i < lines.length; i++) {
-      out.write("\n");
-      hangingIndent();
-      out.write(lines[i]);
-    }
+    writeFormatted(hangingOut);
     if (!pattern.endsWith("{")) {
       out.write(";");
     }
@@ -675,8 +736,9 @@ public class MmapJavaWriter implements Closeable {
    */
   public MmapJavaWriter beginControlFlow(String controlFlow, Object... args) throws IOException {
     checkInMethod();
+    format(controlFlow, args);
     indent();
-    out.write(String.format(controlFlow, args));
+    writeFormatted(out);
     out.write(" {\n");
     scopes.push(Scope.CONTROL_FLOW);
     return this;
@@ -687,11 +749,12 @@ public class MmapJavaWriter implements Closeable {
    *     Shouldn't contain braces or newline characters.
    */
   public MmapJavaWriter nextControlFlow(String controlFlow, Object... args) throws IOException {
+    format(controlFlow, args);
     popScope(Scope.CONTROL_FLOW);
     indent();
     scopes.push(Scope.CONTROL_FLOW);
     out.write("} ");
-    out.write(String.format(controlFlow, args));
+    writeFormatted(out);
     out.write(" {\n");
     return this;
   }
@@ -705,11 +768,14 @@ public class MmapJavaWriter implements Closeable {
    *     "while(foo == 20)". Only used for "do/while" control flows.
    */
   public MmapJavaWriter endControlFlow(String controlFlow, Object... args) throws IOException {
+    if (controlFlow != null) {
+      format(controlFlow, args);
+    }
     popScope(Scope.CONTROL_FLOW);
     indent();
     if (controlFlow != null) {
       out.write("} ");
-      out.write(String.format(controlFlow, args));
+      writeFormatted(out);
       out.write(";\n");
     } else {
       out.write("}\n");
@@ -838,10 +904,39 @@ public class MmapJavaWriter implements Closeable {
       modifiers = EnumSet.copyOf(modifiers);
     }
     for (Modifier modifier : modifiers) {
-      out.append(modifier.toString()).append(' ');
+      out.write(MODIFIER_NAMES[modifier.ordinal()]);
+      out.write(' ');
     }
   }
 
+  /**
+   * Formats {@code pattern} with {@code args} into {@link #formatted}, the same way as
+   * {@link String#format(String, Object...)}, reusing the same buffer and {@link Formatter} for
+   * every pattern. Patterns without format specifiers are copied as they are. Nothing is written,
+   * so invalid patterns throw before any output.
+   */
+  private void format(String pattern, Object... args) {
+    formatted.setLength(0);
+    if (pattern.indexOf('%') == -1) {
+      formatted.append(pattern);
+      return;
+    }
+    if (formatter == null) {
+      formatter = new Formatter(formatted);
+    }
+    formatter.format(pattern, args);
+  }
+
+  /** Writes the pattern formatted by {@link #format(String, Object...)} to {@code writer}. */
+  private void writeFormatted(Writer writer) throws IOException {
+    int length = formatted.length();
+    if (formattedChars.length < length) {
+      formattedChars = new char[Math.max(length, formattedChars.length * 2)];
+    }
+    formatted.getChars(0, length, formattedChars, 0);
+    writer.write(formattedChars, 0, length);
+  }
+
   private void indent() throws IOException {
     for (int i = 0, count = scopes.size(); i < count; i++) {
       out.write(indent);
@@ -865,8 +960,53 @@ public class MmapJavaWriter implements Closeable {
   }
 
   private void popScope(Scope... expected) {
-    if (!EnumSet.copyOf(Arrays.asList(expected)).contains(scopes.pop())) {
-      throw new IllegalStateException();
+    Scope popped = scopes.pop();
+    for (Scope scope : expected) {
+      if (scope == popped) {
+        return;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  /** Writes to {@link #out}, following each newline with a hanging indent. */
+  private final class HangingIndentWriter extends Writer {
+    @Override public void write(int c) throws IOException {
+      out.write(c);
+      if (c == '\n') {
+        hangingIndent();
+      }
+    }
+
+    @Override public void write(String str, int off, int len) throws IOException {
+      int end = off + len;
+      int newline;
+      while ((newline = str.indexOf('\n', off)) != -1 && newline < end) {
+        out.write(str, off, newline + 1 - off);
+        hangingIndent();
+        off = newline + 1;
+      }
+      out.write(str, off, end - off);
+    }
+
+    @Override public void write(char[] cbuf, int off, int len) throws IOException {
+      int start = off;
+      for (int i = off, end = off + len; i < end; i++) {
+        if (cbuf[i] == '\n') {
+          out.write(cbuf, start, i + 1 - start);
+          hangingIndent();
+          start = i + 1;
+        }
+      }
+      out.write(cbuf, start, off + len - start);
+    }
+
+    @Override public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override public void close() throws IOException {
+      // Closing the writer is up to its owner
     }
   }
 
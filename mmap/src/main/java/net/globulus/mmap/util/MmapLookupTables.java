@@ -0,0 +1,285 @@
+package net.globulus.mmap.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.lang.model.element.Modifier;
+
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+/**
+ * Emits static lookup tables for the final merged input, typically in the {@code @Sink} module.
+ * Each table is a lookup method backed by arrays that live in a lazily initialized holder class,
+ * so nothing is built until the first lookup, and lookups don't allocate. Tables use a minimal
+ * perfect hash of the keys' {@link String#hashCode()}, which takes a single probe, or a sorted
+ * array searched with {@link Arrays#binarySearch(Object[], Object)} if some of the keys' hash codes
+ * collide. Large tables are filled by several methods, so their size isn't bound by the size limit
+ * of a single static initializer, but by the number of constants a class can hold, which allows
+ * for tens of thousands of entries.
+ */
+public final class MmapLookupTables {
+  private static final int MAX_DISPLACEMENT = 1 << 16;
+  /** Entries per fill method of large tables, which keeps each one below the JVM's method size limit. */
+  private static final int FILL_CHUNK_SIZE = 500;
+  private static final String KEYS = "KEYS";
+  private static final String VALUES = "VALUES";
+  private static final String DISPLACEMENTS = "DISPLACEMENTS";
+
+  private MmapLookupTables() {
+  }
+
+  /** Equivalent to {@code emitLookupTable(writer, methodName, valueType, entries, missingValue, PUBLIC STATIC)}. */
+  public static MmapJavaWriter emitLookupTable(MmapJavaWriter writer, String methodName,
+                                               String valueType, Map<String, String> entries,
+                                               String missingValue) throws IOException {
+    return emitLookupTable(writer, methodName, valueType, entries, missingValue,
+        EnumSet.of(PUBLIC, STATIC));
+  }
+
+  /**
+   * Emits a static lookup method, {@code valueType methodName(String key)}, and the holder class
+   * of its table into the type that's currently being written.
+   *
+   * @param valueType the type of the values. The arrays of generic types are created with their
+   *     raw type, as generic arrays can't be created.
+   * @param entries non-null keys mapped to the Java expressions of their values, such as
+   *     {@code "42"} or {@code stringLiteral("foo")}.
+   * @param missingValue the Java expression returned for keys that aren't in the table, such as
+   *     {@code "null"}.
+   * @param modifiers the modifiers of the lookup method, which always includes static.
+   */
+  public static MmapJavaWriter emitLookupTable(MmapJavaWriter writer, String methodName,
+                                               String valueType, Map<String, String> entries,
+                                               String missingValue, Set<Modifier> modifiers)
+      throws IOException {
+    Set<Modifier> methodModifiers = EnumSet.of(STATIC);
+    methodModifiers.addAll(modifiers);
+    String holder = Character.toUpperCase(methodName.charAt(0)) + methodName.substring(1) + "Table";
+    List<String> keys = new ArrayList<String>(new TreeMap<String, String>(entries).keySet());
+    int[] displacements = findDisplacements(keys);
+    if (displacements != null) {
+      keys = placeKeys(keys, displacements);
+    }
+
+    writer.beginMethod(valueType, methodName, methodModifiers, "java.lang.String", "key");
+    if (displacements != null) {
+      writer.emitStatement("int hash = key.hashCode()");
+      writer.emitStatement("int displacement = %s.%s[%s.slot(hash, 0, %s.%s.length)]",
+          holder, DISPLACEMENTS, holder, holder, DISPLACEMENTS);
+      writer.emitStatement("int index = (displacement < 0) ? -displacement - 1 : %s.slot(hash, "
+          + "displacement, %s.%s.length)", holder, holder, KEYS);
+      writer.emitStatement("return key.equals(%s.%s[index]) ? %s.%s[index] : %s",
+          holder, KEYS, holder, VALUES, missingValue);
+    } else {
+      writer.emitStatement("int index = java.util.Arrays.binarySearch(%s.%s, key)", holder, KEYS);
+      writer.emitStatement("return (index >= 0) ? %s.%s[index] : %s",
+          holder, VALUES, missingValue);
+    }
+    writer.endMethod();
+    writer.emitEmptyLine();
+
+    writer.beginType(holder, "class", EnumSet.of(PRIVATE, STATIC, FINAL));
+    List<String> keyLiterals = new ArrayList<String>(keys.size());
+    List<String> values = new ArrayList<String>(keys.size());
+    List<String> displacementValues = new ArrayList<String>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      keyLiterals.add(MmapJavaWriter.stringLiteral(keys.get(i)));
+      values.add(entries.get(keys.get(i)));
+      if (displacements != null) {
+        displacementValues.add(Integer.toString(displacements[i]));
+      }
+    }
+    if (keys.size() <= FILL_CHUNK_SIZE) {
+      writer.emitField("java.lang.String[]", KEYS, EnumSet.of(STATIC, FINAL),
+          arrayInitializer(keyLiterals));
+      writer.emitField(valueType + "[]", VALUES, EnumSet.of(STATIC, FINAL),
+          "new " + writer.compressType(MmapJavaWriter.rawType(valueType)) + "[] "
+              + arrayInitializer(values));
+      if (displacements != null) {
+        writer.emitField("int[]", DISPLACEMENTS, EnumSet.of(STATIC, FINAL),
+            arrayInitializer(displacementValues));
+      }
+    } else {
+      emitFilledArrays(writer, valueType, keyLiterals, values, displacementValues);
+    }
+    if (displacements != null) {
+      writer.emitEmptyLine();
+      writer.beginMethod("int", "slot", EnumSet.of(STATIC), "int", "hash", "int", "seed",
+          "int", "size");
+      writer.emitStatement("hash ^= seed * 0x9E3779B9");
+      writer.emitStatement("hash ^= hash >>> 16");
+      writer.emitStatement("hash *= 0x85EBCA6B");
+      writer.emitStatement("hash ^= hash >>> 13");
+      writer.emitStatement("return (hash & 0x7FFFFFFF) %% size");
+      writer.endMethod();
+    }
+    writer.endType();
+    return writer;
+  }
+
+  /**
+   * Emits the arrays of a large table, along with the methods that fill them, a chunk of entries
+   * each, from the holder's static initializer.
+   */
+  private static void emitFilledArrays(MmapJavaWriter writer, String valueType,
+                                       List<String> keyLiterals, List<String> values,
+                                       List<String> displacementValues) throws IOException {
+    int size = keyLiterals.size();
+    writer.emitField("java.lang.String[]", KEYS, EnumSet.of(STATIC, FINAL),
+        "new " + writer.compressType("java.lang.String") + "[" + size + "]");
+    writer.emitField(valueType + "[]", VALUES, EnumSet.of(STATIC, FINAL),
+        "new " + writer.compressType(MmapJavaWriter.rawType(valueType)) + "[" + size + "]");
+    if (!displacementValues.isEmpty()) {
+      writer.emitField("int[]", DISPLACEMENTS, EnumSet.of(STATIC, FINAL), "new int[" + size + "]");
+    }
+    writer.emitEmptyLine();
+    writer.beginStaticBlock();
+    for (int start = 0; start < size; start += FILL_CHUNK_SIZE) {
+      writer.emitStatement("fill%d()", start / FILL_CHUNK_SIZE);
+    }
+    writer.endStaticBlock();
+    for (int start = 0; start < size; start += FILL_CHUNK_SIZE) {
+      writer.emitEmptyLine();
+      writer.beginMethod("void", "fill" + (start / FILL_CHUNK_SIZE), EnumSet.of(PRIVATE, STATIC));
+      for (int i = start, end = Math.min(start + FILL_CHUNK_SIZE, size); i < end; i++) {
+        writer.emitStatement("%s[%d] = %s", KEYS, i, keyLiterals.get(i));
+        writer.emitStatement("%s[%d] = %s", VALUES, i, values.get(i));
+        if (!displacementValues.isEmpty()) {
+          writer.emitStatement("%s[%d] = %s", DISPLACEMENTS, i, displacementValues.get(i));
+        }
+      }
+      writer.endMethod();
+    }
+  }
+
+  /** Must match the {@code slot} method of the generated holders. */
+  private static int slot(int hash, int seed, int size) {
+    hash ^= seed * 0x9E3779B9;
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    return (hash & 0x7FFFFFFF) % size;
+  }
+
+  /**
+   * Finds a minimal perfect hash of the keys by hashing them into buckets, and finding a seed for
+   * each bucket that places all of its keys into free slots, starting with the largest buckets.
+   * Buckets with a single key store its slot directly, as {@code -slot - 1}.
+   *
+   * @return the displacement of each bucket, or null if the keys' hash codes collide.
+   */
+  private static int[] findDisplacements(List<String> keys) {
+    int size = keys.size();
+    if (size == 0) {
+      return null;
+    }
+    List<List<Integer>> buckets = new ArrayList<List<Integer>>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new ArrayList<Integer>());
+    }
+    int[] hashes = new int[size];
+    for (int i = 0; i < size; i++) {
+      hashes[i] = keys.get(i).hashCode();
+      buckets.get(slot(hashes[i], 0, size)).add(i);
+    }
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    final List<List<Integer>> sortedBuckets = buckets;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override public int compare(Integer a, Integer b) {
+        return sortedBuckets.get(b).size() - sortedBuckets.get(a).size();
+      }
+    });
+
+    int[] displacements = new int[size];
+    boolean[] taken = new boolean[size];
+    List<Integer> freeSlots = new ArrayList<Integer>();
+    int b = 0;
+    for (; b < size; b++) {
+      List<Integer> bucket = buckets.get(order[b]);
+      if (bucket.size() <= 1) {
+        break;
+      }
+      int[] slots = new int[bucket.size()];
+      int displacement = 1;
+      while (!tryPlace(bucket, hashes, displacement, taken, slots)) {
+        if (++displacement > MAX_DISPLACEMENT) {
+          return null;
+        }
+      }
+      for (int slot : slots) {
+        taken[slot] = true;
+      }
+      displacements[order[b]] = displacement;
+    }
+    for (int i = size - 1; i >= 0; i--) {
+      if (!taken[i]) {
+        freeSlots.add(i);
+      }
+    }
+    for (; b < size; b++) {
+      List<Integer> bucket = buckets.get(order[b]);
+      if (bucket.isEmpty()) {
+        break;
+      }
+      int slot = freeSlots.remove(freeSlots.size() - 1);
+      displacements[order[b]] = -slot - 1;
+    }
+    return displacements;
+  }
+
+  private static boolean tryPlace(List<Integer> bucket, int[] hashes, int displacement,
+                                  boolean[] taken, int[] slots) {
+    for (int i = 0; i < slots.length; i++) {
+      int slot = slot(hashes[bucket.get(i)], displacement, taken.length);
+      if (taken[slot]) {
+        return false;
+      }
+      for (int j = 0; j < i; j++) {
+        if (slots[j] == slot) {
+          return false;
+        }
+      }
+      slots[i] = slot;
+    }
+    return true;
+  }
+
+  /** Orders the keys by the slots the displacements place them in. */
+  private static List<String> placeKeys(List<String> keys, int[] displacements) {
+    String[] placed = new String[keys.size()];
+    for (String key : keys) {
+      int hash = key.hashCode();
+      int displacement = displacements[slot(hash, 0, displacements.length)];
+      int index = (displacement < 0) ? -displacement - 1 : slot(hash, displacement, placed.length);
+      placed[index] = key;
+    }
+    List<String> placedKeys = new ArrayList<String>(placed.length);
+    Collections.addAll(placedKeys, placed);
+    return placedKeys;
+  }
+
+  private static String arrayInitializer(List<String> values) {
+    if (values.isEmpty()) {
+      return "{}";
+    }
+    StringBuilder result = new StringBuilder("{");
+    for (int i = 0; i < values.size(); i++) {
+      result.append(i == 0 ? "\n" : ",\n").append(values.get(i));
+    }
+    return result.append("\n}").toString();
+  }
+}
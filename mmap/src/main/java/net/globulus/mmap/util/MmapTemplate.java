@@ -0,0 +1,160 @@
+package net.globulus.mmap.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precompiled {@link MmapJavaWriter} emit sequence, for generating many near-identical sources,
+ * such as an accessor class per preference. The sequence is run once, by {@link #compile}, with
+ * placeholders in place of the parts that vary, and its output is kept as literal text with slots
+ * in between. Rendering only writes the literal text and the slot values, without formatting,
+ * type compression or scope checks.
+ *
+ * <p>Slot values are written as they are, so types have to be passed in the form they'd be emitted
+ * in, e.g. via {@link MmapJavaWriter#compressType(String)}, and values that span several lines
+ * don't get a hanging indent.
+ */
+public final class MmapTemplate {
+  private static final String PLACEHOLDER_PREFIX = "$mmapSlot$";
+  private static final char PLACEHOLDER_SUFFIX = '$';
+
+  private final List<String> slotNames;
+  private final String[] literals;
+  private final int[] slotIndices;
+  private final int literalLength;
+
+  private MmapTemplate(List<String> slotNames, String[] literals, int[] slotIndices) {
+    this.slotNames = slotNames;
+    this.literals = literals;
+    this.slotIndices = slotIndices;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  /** Emits the sequence a template is compiled from. */
+  public interface Recipe {
+    /**
+     * Emits into {@code writer}, using {@code slots} for the parts that vary between renders. The
+     * placeholders can be used anywhere a name, type or piece of code goes, including format
+     * arguments.
+     */
+    void emit(MmapJavaWriter writer, Slots slots) throws IOException;
+  }
+
+  /** The placeholders of a template's slots, by slot name. */
+  public static final class Slots {
+    private final List<String> names;
+
+    private Slots(List<String> names) {
+      this.names = names;
+    }
+
+    /** Returns the placeholder of the slot called {@code name}. */
+    public String get(String name) {
+      int index = names.indexOf(name);
+      if (index == -1) {
+        throw new IllegalArgumentException("Unknown slot " + name);
+      }
+      return PLACEHOLDER_PREFIX + index + PLACEHOLDER_SUFFIX;
+    }
+  }
+
+  /**
+   * Runs {@code recipe} once and compiles its output into a template.
+   *
+   * @param slotNames names of the slots, in the order their values are passed to
+   *     {@link #render(Writer, String...)}.
+   */
+  public static MmapTemplate compile(Recipe recipe, String... slotNames) throws IOException {
+    List<String> names = Collections.unmodifiableList(Arrays.asList(slotNames.clone()));
+    if (new HashSet<String>(names).size() != names.size()) {
+      throw new IllegalArgumentException("Duplicate slot names " + names);
+    }
+    StringWriter out = new StringWriter();
+    MmapJavaWriter writer = new MmapJavaWriter(out);
+    recipe.emit(writer, new Slots(names));
+    writer.close();
+    String source = out.toString();
+
+    List<String> literals = new ArrayList<String>();
+    List<Integer> slotIndices = new ArrayList<Integer>();
+    int pos = 0;
+    int start;
+    while ((start = source.indexOf(PLACEHOLDER_PREFIX, pos)) != -1) {
+      int digitsStart = start + PLACEHOLDER_PREFIX.length();
+      int end = source.indexOf(PLACEHOLDER_SUFFIX, digitsStart);
+      if (end == -1) {
+        throw new IllegalStateException("Malformed slot placeholder at " + start);
+      }
+      literals.add(source.substring(pos, start));
+      slotIndices.add(Integer.parseInt(source.substring(digitsStart, end)));
+      pos = end + 1;
+    }
+    literals.add(source.substring(pos));
+
+    int[] indices = new int[slotIndices.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = slotIndices.get(i);
+    }
+    return new MmapTemplate(names, literals.toArray(new String[literals.size()]), indices);
+  }
+
+  /**
+   * Writes the template to {@code out}, with {@code values} in its slots.
+   *
+   * @param values values of the slots, in the order of the slot names the template was compiled
+   *     with.
+   */
+  public void render(Writer out, String... values) throws IOException {
+    if (values.length != slotNames.size()) {
+      throw new IllegalArgumentException("Expected values for slots " + slotNames
+          + ", got " + values.length);
+    }
+    for (int i = 0; i < slotIndices.length; i++) {
+      out.write(literals[i]);
+      out.write(values[slotIndices[i]]);
+    }
+    out.write(literals[slotIndices.length]);
+  }
+
+  /** Writes the template to {@code out}, with the values of its slots looked up by slot name. */
+  public void render(Writer out, Map<String, String> values) throws IOException {
+    String[] orderedValues = new String[slotNames.size()];
+    for (int i = 0; i < orderedValues.length; i++) {
+      String value = values.get(slotNames.get(i));
+      if (value == null) {
+        throw new IllegalArgumentException("Missing value for slot " + slotNames.get(i));
+      }
+      orderedValues[i] = value;
+    }
+    render(out, orderedValues);
+  }
+
+  /** Returns the template with {@code values} in its slots. */
+  public String render(String... values) throws IOException {
+    int length = literalLength;
+    for (int slotIndex : slotIndices) {
+      if (slotIndex < values.length) {
+        length += values[slotIndex].length();
+      }
+    }
+    StringWriter out = new StringWriter(length);
+    render(out, values);
+    return out.toString();
+  }
+
+  /** Returns the names of the template's slots, in the order their values are rendered in. */
+  public List<String> getSlotNames() {
+    return slotNames;
+  }
+}